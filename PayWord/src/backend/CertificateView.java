@@ -0,0 +1,115 @@
+package backend;
+
+import utils.ByteKey;
+import utils.Constants;
+import utils.Crypto;
+import utils.PublicKeyCache;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+
+
+/**
+ * A read-only view of a user certificate inside a larger array (e.g. a commit or a redeem message), without copying it
+ * The layout of a certificate is:
+ *  - the identity of the Broker (128 bytes)
+ *  - the identity of the User (128 bytes)
+ *  - the public key of the Broker (162 bytes)
+ *  - the public key of the User (162 bytes)
+ *  - the expire date, the account number and the credit limit of the User (8 bytes each)
+ *  - the signature of the Broker on all of the above (128 bytes)
+ * The values that have to be decoded are decoded once
+ */
+public class CertificateView {
+
+    public static final int BROKER_IDENTITY_OFFSET = 0;
+    public static final int USER_IDENTITY_OFFSET = Constants.IDENTITY_LENGTH;
+    public static final int BROKER_PUBLIC_KEY_OFFSET = 2 * Constants.IDENTITY_LENGTH;
+    public static final int PUBLIC_KEY_LENGTH = 162;
+    public static final int USER_PUBLIC_KEY_OFFSET = BROKER_PUBLIC_KEY_OFFSET + PUBLIC_KEY_LENGTH;
+    public static final int EXPIRE_DATE_OFFSET = USER_PUBLIC_KEY_OFFSET + PUBLIC_KEY_LENGTH;
+    public static final int ACCOUNT_NUMBER_OFFSET = EXPIRE_DATE_OFFSET + Constants.LONG_NO_OF_BYTES;
+    public static final int CREDIT_LIMIT_OFFSET = ACCOUNT_NUMBER_OFFSET + Constants.LONG_NO_OF_BYTES;
+    public static final int UNSIGNED_LENGTH = CREDIT_LIMIT_OFFSET + Constants.LONG_NO_OF_BYTES;
+    public static final int SIGNATURE_LENGTH = Constants.KEY_NO_OF_BITS / 8;
+    public static final int LENGTH = UNSIGNED_LENGTH + SIGNATURE_LENGTH;
+
+    private final byte[] bytes;
+    private final int offset;
+
+    private PublicKey brokerPublicKey;
+    private PublicKey userPublicKey;
+
+    /**
+     * @param bytes the array with the certificate
+     * @param offset the index of the first byte of the certificate
+     */
+    public CertificateView(byte[] bytes, int offset) {
+        this.bytes = bytes;
+        this.offset = offset;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return a key over the identity of the user, for lookups only
+     */
+    public ByteKey getUserIdentityKey() {
+        return ByteKey.view(bytes, offset + USER_IDENTITY_OFFSET, Constants.IDENTITY_LENGTH);
+    }
+
+    /**
+     * @return a copy of the identity of the user
+     */
+    public byte[] copyUserIdentity() {
+        byte[] userIdentity = new byte[Constants.IDENTITY_LENGTH];
+        System.arraycopy(bytes, offset + USER_IDENTITY_OFFSET, userIdentity, 0, Constants.IDENTITY_LENGTH);
+        return userIdentity;
+    }
+
+    public PublicKey getBrokerPublicKey() {
+        if (brokerPublicKey == null)
+            brokerPublicKey = PublicKeyCache.getInstance().getPublicKey(bytes, offset + BROKER_PUBLIC_KEY_OFFSET, PUBLIC_KEY_LENGTH);
+        return brokerPublicKey;
+    }
+
+    public PublicKey getUserPublicKey() {
+        if (userPublicKey == null)
+            userPublicKey = PublicKeyCache.getInstance().getPublicKey(bytes, offset + USER_PUBLIC_KEY_OFFSET, PUBLIC_KEY_LENGTH);
+        return userPublicKey;
+    }
+
+    public long getExpireDate() {
+        return ByteBuffer.wrap(bytes, offset + EXPIRE_DATE_OFFSET, Constants.LONG_NO_OF_BYTES).getLong();
+    }
+
+    public long getAccountNumber() {
+        return ByteBuffer.wrap(bytes, offset + ACCOUNT_NUMBER_OFFSET, Constants.LONG_NO_OF_BYTES).getLong();
+    }
+
+    public long getCreditLimit() {
+        return ByteBuffer.wrap(bytes, offset + CREDIT_LIMIT_OFFSET, Constants.LONG_NO_OF_BYTES).getLong();
+    }
+
+    /**
+     * Check the signature of the Broker on the certificate, with the Broker key the certificate carries
+     * @return true if the signature is valid, false otherwise
+     */
+    public boolean verifyBrokerSignature() {
+        return Crypto.verify(getBrokerPublicKey(), bytes, offset, UNSIGNED_LENGTH, bytes, offset + UNSIGNED_LENGTH, SIGNATURE_LENGTH);
+    }
+
+    /**
+     * @return the digest of the whole certificate, which identifies it
+     */
+    public byte[] getDigest() {
+        return Crypto.hashMessage(bytes, offset, LENGTH);
+    }
+
+}
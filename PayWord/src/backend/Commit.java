@@ -1,21 +1,17 @@
 package backend;
 
 import user.UserInfo;
-import utils.Constants;
+import utils.Log;
 
-import java.nio.ByteBuffer;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.interfaces.RSAPublicKey;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
 import java.util.Arrays;
 
 
 public class Commit {
 
     private byte[] bytes;
+    private CommitView view;
 
     public Commit(byte[] bytes) {
         this.bytes = bytes;
@@ -25,44 +21,30 @@ public class Commit {
         return this.bytes;
     }
 
+    /**
+     * @return the fields of the commit, read in place
+     */
+    public CommitView getView() {
+        if (view == null)
+            view = new CommitView(this.bytes, 0);
+        return view;
+    }
+
     public UserInfo getUserInfoFromCommit() {
         UserInfo userInfo = new UserInfo();
 
         //the userIdentity and userPublicKey can be extracted from the user certificate
-        byte[] userCertificate = Arrays.copyOfRange(this.bytes, Constants.IDENTITY_NO_OF_BITS / 8, (Constants.IDENTITY_NO_OF_BITS / 8) + 732);
-
-        //get the unsigned part
-        byte[] unsignedPart = Arrays.copyOfRange(userCertificate, 0, 604);
-
-        //get the userIdentity
-        byte[] userIdentity = Arrays.copyOfRange(unsignedPart, Constants.IDENTITY_NO_OF_BITS / 8, 2 * (Constants.IDENTITY_NO_OF_BITS / 8));
+        CertificateView userCertificate = getView().getCertificate();
 
         //get the userPublicKey
-        byte[] userPublicKeyBytes = Arrays.copyOfRange(unsignedPart, 2 * (Constants.IDENTITY_NO_OF_BITS / 8) + 162, 2 * (Constants.IDENTITY_NO_OF_BITS / 8) + 2 * 162);
-        PublicKey userPublicKey = null;
-        X509EncodedKeySpec keySpec = new X509EncodedKeySpec(userPublicKeyBytes);
-        KeyFactory keyFactory = null;
-        try {
-            keyFactory = KeyFactory.getInstance("RSA");
-            userPublicKey = keyFactory.generatePublic(keySpec);
-
-            System.out.println("UserInfo.getUserInfoFromCommit: userPublicKeyBytes=" + ((RSAPublicKey) userPublicKey).getModulus().toString());
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (InvalidKeySpecException e) {
-            e.printStackTrace();
-        }
-
-        //get the userAccountNo
-        long accountNo = ByteBuffer.wrap(unsignedPart, unsignedPart.length - 16, 8).getLong();
-
-        //get the userCreditLimit
-        long creditLimit = ByteBuffer.wrap(unsignedPart, unsignedPart.length - 8, 8).getLong();
-
-        userInfo.setIdentity(userIdentity);
+        PublicKey userPublicKey = userCertificate.getUserPublicKey();
+        if (userPublicKey != null)
+            Log.debug("UserInfo.getUserInfoFromCommit: userPublicKeyBytes={}", ((RSAPublicKey) userPublicKey).getModulus());
+
+        userInfo.setIdentity(userCertificate.copyUserIdentity());
         userInfo.setPublicKey(userPublicKey);
-        userInfo.setAccountNumber(accountNo);
-        userInfo.setCreditLimit(creditLimit);
+        userInfo.setAccountNumber(userCertificate.getAccountNumber());
+        userInfo.setCreditLimit(userCertificate.getCreditLimit());
 
         return userInfo;
     }
@@ -0,0 +1,118 @@
+package backend;
+
+import utils.ByteKey;
+import utils.Constants;
+import utils.Crypto;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+
+
+/**
+ * A read-only view of a commit inside a larger array (e.g. a redeem message), without copying it
+ * The layout of a commit is:
+ *  - the identity of the Vendor (128 bytes)
+ *  - the certificate of the User (see CertificateView)
+ *  - the roots c0 of the chains of paywords of value 1, 5 and 10 (20 bytes each)
+ *  - the date (8 bytes) and the length of the chains (4 bytes)
+ *  - the signature of the User on all of the above (128 bytes)
+ */
+public class CommitView {
+
+    public static final int VENDOR_IDENTITY_OFFSET = 0;
+    public static final int CERTIFICATE_OFFSET = Constants.IDENTITY_LENGTH;
+    public static final int ROOTS_OFFSET = CERTIFICATE_OFFSET + CertificateView.LENGTH;
+    public static final int DATE_OFFSET = ROOTS_OFFSET + 3 * Constants.HASH_LENGTH;
+    public static final int CHAIN_LENGTH_OFFSET = DATE_OFFSET + Constants.LONG_NO_OF_BYTES;
+    public static final int UNSIGNED_LENGTH = CHAIN_LENGTH_OFFSET + Constants.INT_NO_OF_BYTES;
+    public static final int SIGNATURE_LENGTH = Constants.KEY_NO_OF_BITS / 8;
+    public static final int LENGTH = UNSIGNED_LENGTH + SIGNATURE_LENGTH;
+
+    private final byte[] bytes;
+    private final int offset;
+
+    private CertificateView certificate;
+
+    /**
+     * @param bytes the array with the commit
+     * @param offset the index of the first byte of the commit
+     */
+    public CommitView(byte[] bytes, int offset) {
+        this.bytes = bytes;
+        this.offset = offset;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return a key over the identity of the vendor, for lookups only
+     */
+    public ByteKey getVendorIdentityKey() {
+        return ByteKey.view(bytes, offset + VENDOR_IDENTITY_OFFSET, Constants.IDENTITY_LENGTH);
+    }
+
+    public CertificateView getCertificate() {
+        if (certificate == null)
+            certificate = new CertificateView(bytes, offset + CERTIFICATE_OFFSET);
+        return certificate;
+    }
+
+    /**
+     * Get the index in the array of the root of the chain with the given payword value
+     * @param paywordValue the payword value
+     * @return the index of the root, or -1 if there is no chain with this value
+     */
+    public int getRootOffset(int paywordValue) {
+        switch (paywordValue) {
+            case Constants.PaywordValue.ONE:
+                return offset + ROOTS_OFFSET;
+            case Constants.PaywordValue.FIVE:
+                return offset + ROOTS_OFFSET + Constants.HASH_LENGTH;
+            case Constants.PaywordValue.TEN:
+                return offset + ROOTS_OFFSET + 2 * Constants.HASH_LENGTH;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @param paywordValue the payword value
+     * @return a copy of the root of the chain with the given payword value
+     */
+    public byte[] copyRoot(int paywordValue) {
+        byte[] root = new byte[Constants.HASH_LENGTH];
+        System.arraycopy(bytes, getRootOffset(paywordValue), root, 0, Constants.HASH_LENGTH);
+        return root;
+    }
+
+    public long getDate() {
+        return ByteBuffer.wrap(bytes, offset + DATE_OFFSET, Constants.LONG_NO_OF_BYTES).getLong();
+    }
+
+    public int getChainLength() {
+        return ByteBuffer.wrap(bytes, offset + CHAIN_LENGTH_OFFSET, Constants.INT_NO_OF_BYTES).getInt();
+    }
+
+    /**
+     * Check the signature of the user on the commit
+     * @param userPublicKey the key of the user
+     * @return true if the signature is valid, false otherwise
+     */
+    public boolean verifyUserSignature(PublicKey userPublicKey) {
+        return Crypto.verify(userPublicKey, bytes, offset, UNSIGNED_LENGTH, bytes, offset + UNSIGNED_LENGTH, SIGNATURE_LENGTH);
+    }
+
+    /**
+     * @return the digest of the signed commit, which identifies it
+     */
+    public byte[] getDigest() {
+        return Crypto.hashMessage(bytes, offset, LENGTH);
+    }
+
+}
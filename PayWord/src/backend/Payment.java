@@ -1,6 +1,5 @@
 package backend;
 
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 
@@ -8,6 +7,9 @@ public class Payment {
 
     private byte[] bytes;
 
+    //the fields of the payment, decoded once (see PaymentView)
+    private PaymentView view;
+
     public Payment(byte[] bytes) {
         this.bytes = bytes;
     }
@@ -16,34 +18,25 @@ public class Payment {
         return bytes;
     }
 
-    public Payword getPayword() {
-        byte[] paywordBytes = new byte[20];
-
-        for (int i = 0; i < 20; ++i)
-            paywordBytes[i] = this.bytes[i];
+    public PaymentView getView() {
+        if (view == null)
+            view = new PaymentView(bytes, 0);
+        return view;
+    }
 
+    public Payword getPayword() {
         Payword payword = new Payword();
-        payword.setBytes(paywordBytes);
+        payword.setBytes(getView().copyPayword());
 
         return payword;
     }
 
     public int getPaywordNo() {
-        byte[] paywordNoBytes = new byte[4];
-
-        for (int i = 20; i < 24; ++i)
-            paywordNoBytes[i - 20] = this.bytes[i];
-
-        return ByteBuffer.wrap(paywordNoBytes).getInt();
+        return getView().getPaywordNo();
     }
 
     public int getPaywordValue() {
-        byte[] paywordValue = new byte[4];
-
-        for (int i = 20; i < 24; ++i)
-            paywordValue[i - 20] = this.bytes[i];
-
-        return ByteBuffer.wrap(paywordValue).getInt();
+        return getView().getPaywordValue();
     }
 
     @Override
@@ -0,0 +1,65 @@
+package backend;
+
+import utils.Constants;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A read-only view of a payment inside a larger array (e.g. a redeem message), without copying it
+ * The layout of a payment is: the payword (20 bytes), its index and its value (4 bytes each)
+ * The index and the value are decoded once
+ */
+public class PaymentView {
+
+    public static final int PAYWORD_OFFSET = 0;
+    public static final int PAYWORD_NO_OFFSET = Constants.HASH_LENGTH;
+    public static final int PAYWORD_VALUE_OFFSET = PAYWORD_NO_OFFSET + Constants.INT_NO_OF_BYTES;
+    public static final int LENGTH = PAYWORD_VALUE_OFFSET + Constants.INT_NO_OF_BYTES;
+
+    private final byte[] bytes;
+    private final int offset;
+
+    private final int paywordNo;
+    private final int paywordValue;
+
+    /**
+     * @param bytes the array with the payment
+     * @param offset the index of the first byte of the payment
+     */
+    public PaymentView(byte[] bytes, int offset) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.paywordNo = ByteBuffer.wrap(bytes, offset + PAYWORD_NO_OFFSET, Constants.INT_NO_OF_BYTES).getInt();
+        this.paywordValue = ByteBuffer.wrap(bytes, offset + PAYWORD_VALUE_OFFSET, Constants.INT_NO_OF_BYTES).getInt();
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the index in the array of the payword
+     */
+    public int getPaywordOffset() {
+        return offset + PAYWORD_OFFSET;
+    }
+
+    /**
+     * @return a copy of the payword
+     */
+    public byte[] copyPayword() {
+        byte[] payword = new byte[Constants.HASH_LENGTH];
+        System.arraycopy(bytes, offset + PAYWORD_OFFSET, payword, 0, Constants.HASH_LENGTH);
+        return payword;
+    }
+
+    public int getPaywordNo() {
+        return paywordNo;
+    }
+
+    public int getPaywordValue() {
+        return paywordValue;
+    }
+
+}
@@ -0,0 +1,87 @@
+package backend;
+
+import utils.Constants;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Many redeem messages sent to the Broker in a single REDEEM_BATCH request
+ * The format of the bytes is:
+ *  - 4 bytes for the number of redeem messages
+ *  - for every redeem message: 4 bytes for its length and its bytes
+ * The response of the Broker has 4 bytes for the number of results and 4 bytes (OK/NOK) for each redeem message
+ */
+public class RedeemBatch {
+
+    //the length of a batch of REDEEM_BATCH_SIZE messages
+    public static final int MAX_LENGTH = Constants.INT_NO_OF_BYTES + Constants.REDEEM_BATCH_SIZE * (Constants.INT_NO_OF_BYTES + RedeemMessageView.LENGTH);
+
+    private byte[] bytes;
+
+    public RedeemBatch(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public RedeemBatch(byte[][] redeemMessages) {
+        int size = Constants.INT_NO_OF_BYTES;
+        for (byte[] redeemMessage : redeemMessages) {
+            size += Constants.INT_NO_OF_BYTES + redeemMessage.length;
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.allocate(size).putInt(redeemMessages.length);
+        for (byte[] redeemMessage : redeemMessages) {
+            byteBuffer.putInt(redeemMessage.length).put(redeemMessage);
+        }
+        this.bytes = byteBuffer.array();
+    }
+
+    public byte[] getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Get the redeem messages of the batch
+     * @return the redeem messages, or null if the bytes are not a valid batch
+     */
+    public byte[][] getRedeemMessages() {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(this.bytes);
+        if (byteBuffer.remaining() < Constants.INT_NO_OF_BYTES)
+            return null;
+
+        int noOfMessages = byteBuffer.getInt();
+        //every message takes at least the 4 bytes of its length
+        if (noOfMessages < 0 || noOfMessages > Constants.REDEEM_BATCH_SIZE || noOfMessages > byteBuffer.remaining() / Constants.INT_NO_OF_BYTES)
+            return null;
+
+        byte[][] redeemMessages = new byte[noOfMessages][];
+        for (int messageNo = 0; messageNo < noOfMessages; ++messageNo) {
+            if (byteBuffer.remaining() < Constants.INT_NO_OF_BYTES)
+                return null;
+
+            int length = byteBuffer.getInt();
+            if (length < 0 || length > byteBuffer.remaining())
+                return null;
+
+            redeemMessages[messageNo] = new byte[length];
+            byteBuffer.get(redeemMessages[messageNo]);
+        }
+
+        return redeemMessages;
+    }
+
+    /**
+     * Get the bytes of the response to a batch
+     * @param results the result of every redeem message
+     * @return the bytes of the response
+     */
+    public static byte[] getResponse(boolean[] results) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(Constants.INT_NO_OF_BYTES * (results.length + 1)).putInt(results.length);
+        for (boolean result : results) {
+            byteBuffer.putInt(result ? Constants.CommunicationProtocol.OK : Constants.CommunicationProtocol.NOK);
+        }
+
+        return byteBuffer.array();
+    }
+
+}
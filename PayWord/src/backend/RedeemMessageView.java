@@ -0,0 +1,38 @@
+package backend;
+
+
+/**
+ * A read-only view of a redeem message, commit(U), c(l), l: the commit followed by the last payment
+ */
+public class RedeemMessageView {
+
+    public static final int COMMIT_OFFSET = 0;
+    public static final int PAYMENT_OFFSET = COMMIT_OFFSET + CommitView.LENGTH;
+    public static final int LENGTH = PAYMENT_OFFSET + PaymentView.LENGTH;
+
+    private final byte[] bytes;
+    private final CommitView commit;
+    private final PaymentView payment;
+
+    /**
+     * @param bytes the redeem message, at least LENGTH bytes
+     */
+    public RedeemMessageView(byte[] bytes) {
+        this.bytes = bytes;
+        this.commit = new CommitView(bytes, COMMIT_OFFSET);
+        this.payment = new PaymentView(bytes, PAYMENT_OFFSET);
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public CommitView getCommit() {
+        return commit;
+    }
+
+    public PaymentView getPayment() {
+        return payment;
+    }
+
+}
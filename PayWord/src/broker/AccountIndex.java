@@ -0,0 +1,216 @@
+package broker;
+
+
+/**
+ * Index of the account balances, keyed by the account number
+ * The accounts are spread over a fixed number of segments, each one being an open addressing hash table
+ * with primitive arrays (no boxing of the account numbers) guarded by its own lock,
+ * so updates of accounts from different segments never wait for each other
+ */
+public class AccountIndex {
+
+    private static final int NO_OF_SEGMENTS = 64;
+    private static final int SEGMENT_INITIAL_CAPACITY = 16;
+
+    private final Segment[] segments;
+
+    public AccountIndex() {
+        this.segments = new Segment[NO_OF_SEGMENTS];
+        for (int i = 0; i < NO_OF_SEGMENTS; ++i) {
+            this.segments[i] = new Segment(SEGMENT_INITIAL_CAPACITY);
+        }
+    }
+
+    /**
+     * Add a new account or overwrite the balance of an existing one
+     * @param accountNo the account number
+     * @param balance the balance of the account
+     */
+    public void put(long accountNo, double balance) {
+        long hash = mix(accountNo);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            segment.put(accountNo, hash, balance);
+        }
+    }
+
+    /**
+     * Add a new account, unless an account with the same number already exists
+     * @param accountNo the account number
+     * @param balance the balance of the account
+     * @return true if the account was added, false if it already existed
+     */
+    public boolean putIfAbsent(long accountNo, double balance) {
+        long hash = mix(accountNo);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            if (segment.find(accountNo, hash) >= 0)
+                return false;
+
+            segment.put(accountNo, hash, balance);
+            return true;
+        }
+    }
+
+    public boolean contains(long accountNo) {
+        long hash = mix(accountNo);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            return segment.find(accountNo, hash) >= 0;
+        }
+    }
+
+    /**
+     * Get the balance of an account
+     * @param accountNo the account number
+     * @return the balance, or Double.NaN if the account does not exist
+     */
+    public double get(long accountNo) {
+        long hash = mix(accountNo);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.find(accountNo, hash);
+            return slot >= 0 ? segment.balances[slot] : Double.NaN;
+        }
+    }
+
+    /**
+     * Add a sum (that can be negative) to the balance of an account
+     * @param accountNo the account number
+     * @param sum the sum to add
+     * @return the new balance, or Double.NaN if the account does not exist
+     */
+    public double add(long accountNo, double sum) {
+        long hash = mix(accountNo);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.find(accountNo, hash);
+            if (slot < 0)
+                return Double.NaN;
+
+            segment.balances[slot] += sum;
+            return segment.balances[slot];
+        }
+    }
+
+    /**
+     * Move a sum from one account to another; either both balances change or none of them
+     * @param fromAccountNo the account to take the money from
+     * @param toAccountNo the account to add the money to
+     * @param sum the sum to move
+     * @return true if both accounts exist and the sum was moved, false otherwise
+     */
+    public boolean transfer(long fromAccountNo, long toAccountNo, double sum) {
+        long fromHash = mix(fromAccountNo);
+        long toHash = mix(toAccountNo);
+        int fromSegmentNo = segmentNo(fromHash);
+        int toSegmentNo = segmentNo(toHash);
+
+        //always lock the segments in the same order, so two opposite transfers can't deadlock
+        Segment first = segments[Math.min(fromSegmentNo, toSegmentNo)];
+        Segment second = segments[Math.max(fromSegmentNo, toSegmentNo)];
+        synchronized (first) {
+            synchronized (second) {
+                Segment fromSegment = segments[fromSegmentNo];
+                Segment toSegment = segments[toSegmentNo];
+                int fromSlot = fromSegment.find(fromAccountNo, fromHash);
+                int toSlot = toSegment.find(toAccountNo, toHash);
+                if (fromSlot < 0 || toSlot < 0)
+                    return false;
+
+                fromSegment.balances[fromSlot] -= sum;
+                toSegment.balances[toSlot] += sum;
+                return true;
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[segmentNo(hash)];
+    }
+
+    private static int segmentNo(long hash) {
+        return (int) (hash >>> 58) & (NO_OF_SEGMENTS - 1);
+    }
+
+    private static long mix(long key) {
+        //the finalizer of MurmurHash3; account numbers are usually consecutive
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+
+    private static class Segment {
+
+        private long[] keys;
+        private double[] balances;
+        private boolean[] used;
+        private int size;
+
+        Segment(int capacity) {
+            this.keys = new long[capacity];
+            this.balances = new double[capacity];
+            this.used = new boolean[capacity];
+            this.size = 0;
+        }
+
+        int find(long key, long hash) {
+            int mask = keys.length - 1;
+            for (int slot = (int) hash & mask; used[slot]; slot = (slot + 1) & mask) {
+                if (keys[slot] == key)
+                    return slot;
+            }
+            return -1;
+        }
+
+        void put(long key, long hash, double balance) {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+            while (used[slot]) {
+                if (keys[slot] == key) {
+                    balances[slot] = balance;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            keys[slot] = key;
+            balances[slot] = balance;
+            used[slot] = true;
+
+            if (++size * 2 > keys.length)
+                resize();
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            double[] oldBalances = balances;
+            boolean[] oldUsed = used;
+
+            keys = new long[oldKeys.length * 2];
+            balances = new double[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            size = 0;
+
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldUsed[i])
+                    put(oldKeys[i], mix(oldKeys[i]), oldBalances[i]);
+            }
+        }
+    }
+
+}
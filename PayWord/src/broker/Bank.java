@@ -1,22 +1,25 @@
 package broker;
 
 import backend.Account;
+import utils.Log;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
 
 
 public class Bank {
 
-    private List<Account> accounts;
+    private AccountIndex accounts;
+    private volatile Ledger ledger;
+    //an account is opened once: the check, the journal record and the new account go together
+    private final Object openLock = new Object();
 
     private static Bank instance;
 
     private Bank() {
-        accounts = new ArrayList<>();
+        accounts = new AccountIndex();
     }
 
-    public static Bank getInstance() {
+    public static synchronized Bank getInstance() {
         if (instance == null) {
             instance = new Bank();
         }
@@ -24,39 +27,126 @@ public class Bank {
         return instance;
     }
 
+    /**
+     * Rebuild the accounts from the journal file and write every change made from now on to it
+     * If the journal is corrupted, the accounts may have been changed by part of it: the Bank should not be used
+     * @param path the path of the journal file
+     * @param groupCommit true to force the changes made in the same time with a single fsync
+     * @return true if the journal was opened, false otherwise
+     */
+    public synchronized boolean openLedger(String path, boolean groupCommit) {
+        if (this.ledger != null)
+            return true;
+
+        try {
+            Ledger ledger = new Ledger(path, groupCommit);
+            long records = ledger.replay(accounts);
+            Log.debug("Bank.openLedger: path={} records={} accounts={}", path, records, accounts.size());
+
+            this.ledger = ledger;
+        } catch (IOException e) {
+            Log.error("Bank.openLedger: can't replay the journal " + path + ", the balances are not trusted", e);
+            return false;
+        }
+
+        return true;
+    }
+
+    public synchronized void closeLedger() {
+        if (this.ledger == null)
+            return;
+
+        try {
+            this.ledger.close();
+        } catch (IOException e) {
+            Log.error("Bank.closeLedger: can't close the journal", e);
+        }
+        this.ledger = null;
+    }
+
+    /**
+     * Open the account in the Bank with the balance it has now
+     * From now on the Bank keeps the balance; the Account object is not updated anymore.
+     * An account that already exists (e.g. rebuilt from the journal) keeps its balance
+     * @param account the account
+     */
     public void addUserAccount(Account account) {
-        this.accounts.add(account);
+        synchronized (openLock) {
+            if (this.accounts.contains(account.getAccountNumber()))
+                return;
+
+            if (ledger != null) {
+                try {
+                    ledger.appendOpen(account.getAccountNumber(), account.getAccountBalance());
+                } catch (IOException e) {
+                    Log.error("Bank.addUserAccount: can't journal the account " + account.getAccountNumber() + "! => not opened", e);
+                    return;
+                }
+            }
+
+            this.accounts.putIfAbsent(account.getAccountNumber(), account.getAccountBalance());
+        }
     }
 
     public void takeMoneyFromAccount(long accountNo, double sumToTake) {
-        for (Account account : accounts) {
-            if (account.getAccountNumber() == accountNo) {
-                double oldBalance = account.getAccountBalance();
-                System.out.println("Bank.takeMoneyFromAccount: accountNo=" + accountNo + " oldBalance=" + oldBalance);
-                account.setAccountBalance(oldBalance - sumToTake);
-                System.out.println("Bank.takeMoneyFromAccount: accountNo=" + accountNo + " newBalance=" + account.getAccountBalance());
-            }
+        if (!accounts.contains(accountNo) || !journalAdd(accountNo, -sumToTake))
+            return;
+
+        double newBalance = accounts.add(accountNo, -sumToTake);
+        if (!Double.isNaN(newBalance)) {
+            Log.debug("Bank.takeMoneyFromAccount: accountNo={} oldBalance={}", accountNo, (newBalance + sumToTake));
+            Log.debug("Bank.takeMoneyFromAccount: accountNo={} newBalance={}", accountNo, newBalance);
         }
     }
 
     public void addMoneyToAccount(long accountNo, double sumToAdd) {
-        for (Account account : accounts) {
-            if (account.getAccountNumber() == accountNo) {
-                double oldBalance = account.getAccountBalance();
-                System.out.println("Bank.addMoneyToAccount: accountNo=" + accountNo + " oldBalance=" + oldBalance);
-                account.setAccountBalance(oldBalance + sumToAdd);
-                System.out.println("Bank.addMoneyToAccount: accountNo=" + accountNo + " newBalance=" + account.getAccountBalance());
-            }
+        if (!accounts.contains(accountNo) || !journalAdd(accountNo, sumToAdd))
+            return;
+
+        double newBalance = accounts.add(accountNo, sumToAdd);
+        if (!Double.isNaN(newBalance)) {
+            Log.debug("Bank.addMoneyToAccount: accountNo={} oldBalance={}", accountNo, (newBalance - sumToAdd));
+            Log.debug("Bank.addMoneyToAccount: accountNo={} newBalance={}", accountNo, newBalance);
         }
     }
 
-    public double getAccountBalance(long accountNo) {
-        for (Account account : accounts) {
-            if (account.getAccountNumber() == accountNo) {
-                return account.getAccountBalance();
-            }
+    /**
+     * Take the sum from one account and add it to another one, as a single operation
+     * @param fromAccountNo the account to take the money from (the User)
+     * @param toAccountNo the account to add the money to (the Vendor)
+     * @param sum the sum to transfer
+     * @return true if both accounts exist and the transfer was made, false if an account doesn't exist
+     * @throws IOException if the transfer can't be written to the journal; no money was moved
+     */
+    public boolean transfer(long fromAccountNo, long toAccountNo, double sum) throws IOException {
+        boolean result = false;
+        if (accounts.contains(fromAccountNo) && accounts.contains(toAccountNo)) {
+            //write the transfer to the journal first; the accounts are never removed, so it can't fail afterwards
+            Ledger ledger = this.ledger;
+            if (ledger != null)
+                ledger.appendTransfer(fromAccountNo, toAccountNo, sum);
+            result = accounts.transfer(fromAccountNo, toAccountNo, sum);
+        }
+        Log.debug("Bank.transfer: fromAccountNo={} toAccountNo={} sum={} result={}", fromAccountNo, toAccountNo, sum, result);
+
+        return result;
+    }
+
+    private boolean journalAdd(long accountNo, double sum) {
+        if (ledger == null)
+            return true;
+
+        try {
+            ledger.appendAdd(accountNo, sum);
+        } catch (IOException e) {
+            Log.error("Bank.journalAdd: can't journal the change of the account " + accountNo + "! => not changed", e);
+            return false;
         }
 
-        return Double.NaN;
+        return true;
+    }
+
+    public double getAccountBalance(long accountNo) {
+        return accounts.get(accountNo);
     }
 }
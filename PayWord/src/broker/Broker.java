@@ -1,22 +1,31 @@
 package broker;
 
 import user.UserInfo;
+import utils.BoundedCache;
+import utils.ByteKey;
 import utils.Constants;
 import utils.Crypto;
+import utils.PublicKeyCache;
+import utils.Log;
+import utils.Metrics;
+import utils.OperationMetrics;
+import backend.CertificateView;
+import backend.CommitView;
 import backend.Payword;
+import backend.RedeemMessageView;
 import vendor.Vendor;
 import vendor.VendorInfo;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.interfaces.RSAPublicKey;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
 
 
 public class Broker {
@@ -24,15 +33,36 @@ public class Broker {
     private PrivateKey privateKey;
     private PublicKey publicKey;
     private byte[] identity;
-    private List<UserInfo> registeredUsers;
-    private List<VendorInfo> registeredVendors;
+    private ConcurrentMap<ByteKey, UserInfo> registeredUsers;
+    private ConcurrentMap<ByteKey, VendorInfo> registeredVendors;
 
-    private List<Payword> paymentsRedeemed;
+    private volatile RedeemedRootStore redeemedRoots;
+
+    private final RedeemPipeline redeemPipeline;
+    private final OperationMetrics chainVerifyMetrics = Metrics.getInstance().getOperationMetrics(Metrics.REDEEM_CHAIN_VERIFY);
+    private final OperationMetrics certificateSignMetrics = Metrics.getInstance().getOperationMetrics(Metrics.CERTIFICATE_SIGN);
+
+    /**
+     * A certificate issued to a user, with the public key it certifies
+     */
+    private static class IssuedCertificate {
+
+        private final PublicKey userPublicKey;
+        private final byte[] certificate;
+
+        IssuedCertificate(PublicKey userPublicKey, byte[] certificate) {
+            this.userPublicKey = userPublicKey;
+            this.certificate = certificate;
+        }
+    }
+
+    //the certificates issued, by user identity, until they get close to their expiry date
+    private final BoundedCache<ByteKey, IssuedCertificate> issuedCertificates = new BoundedCache<>(Constants.CERTIFICATE_CACHE_SIZE);
 
     private Bank bank;
     private static Broker instance;
 
-    public static Broker getInstance() {
+    public static synchronized Broker getInstance() {
         if (instance == null) {
             instance = new Broker();
         }
@@ -45,11 +75,12 @@ public class Broker {
         this.privateKey = keyPair.getPrivate();
         this.publicKey = keyPair.getPublic();
         initIdentity();
-        this.registeredUsers = new ArrayList<>();
-        this.registeredVendors = new ArrayList<>();
-        this.paymentsRedeemed = new ArrayList<>();
+        this.registeredUsers = new ConcurrentHashMap<>();
+        this.registeredVendors = new ConcurrentHashMap<>();
+        this.redeemedRoots = new RedeemedRootIndex();
 
         this.bank = Bank.getInstance();
+        this.redeemPipeline = new RedeemPipeline(this, Runtime.getRuntime().availableProcessors(), Constants.REDEEM_PIPELINE_QUEUE_LENGTH);
     }
 
     public Broker(String identity) {
@@ -64,11 +95,12 @@ public class Broker {
             this.identity[i] = stringIdentityBytes[i];
         }
 
-        this.registeredUsers = new ArrayList<>();
-        this.registeredVendors = new ArrayList<>();
-        this.paymentsRedeemed = new ArrayList<>();
+        this.registeredUsers = new ConcurrentHashMap<>();
+        this.registeredVendors = new ConcurrentHashMap<>();
+        this.redeemedRoots = new RedeemedRootIndex();
 
         this.bank = Bank.getInstance();
+        this.redeemPipeline = new RedeemPipeline(this, Runtime.getRuntime().availableProcessors(), Constants.REDEEM_PIPELINE_QUEUE_LENGTH);
     }
 
     private void initIdentity() {
@@ -78,6 +110,24 @@ public class Broker {
         }
     }
 
+    /**
+     * Keep the redeemed roots in a memory mapped file instead of the memory, so they survive a restart
+     * Should be called before the first redeem
+     * @param path the path of the file
+     * @param capacity the number of slots, if the file is created now
+     * @return true if the file was opened, false otherwise
+     */
+    public synchronized boolean openRedeemedRootStore(String path, long capacity) {
+        try {
+            this.redeemedRoots = new MappedRedeemedRootStore(path, capacity);
+        } catch (IOException e) {
+            Log.error("Broker.openRedeemedRootStore: can't open " + path, e);
+            return false;
+        }
+
+        return true;
+    }
+
     public PublicKey getPublicKey() {
         return this.publicKey;
     }
@@ -126,19 +176,8 @@ public class Broker {
         byte[] publicKeyBytes = new byte[lengthOfPublicKey];
         publicKeyBytes = Arrays.copyOfRange(userPersonalInfo, indexStart, indexEnd);
 
-        PublicKey userPublicKey = null;
-        X509EncodedKeySpec keySpec = new X509EncodedKeySpec(publicKeyBytes);
-        KeyFactory keyFactory = null;
-        try {
-            keyFactory = KeyFactory.getInstance("RSA");
-            userPublicKey = keyFactory.generatePublic(keySpec);
-
-            //System.out.println("Broker.registerNewUser: userPublicKey=" + ((RSAPublicKey) userPublicKey).getModulus().toString());
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (InvalidKeySpecException e) {
-            e.printStackTrace();
-        }
+        PublicKey userPublicKey = PublicKeyCache.getInstance().getPublicKey(publicKeyBytes);
+        //System.out.println("Broker.registerNewUser: userPublicKey=" + ((RSAPublicKey) userPublicKey).getModulus().toString());
 
         indexStart = indexEnd;
         indexEnd += 8;
@@ -169,19 +208,31 @@ public class Broker {
         userInfo.setAccountNumber(userAccountNumber);
         userInfo.setCreditLimit(userCreditLimit);
 
-        if (registeredUsers.contains(userInfo)) {
-            System.out.println("Broker.registerNewUser: userInfo exists!");
+        //register the user, or replace the public key of the user already registered, as a single operation
+        final PublicKey newPublicKey = userPublicKey;
+        final ByteKey userKey = new ByteKey(userIdentity);
+        UserInfo registered = registeredUsers.merge(userKey, userInfo, new BiFunction<UserInfo, UserInfo, UserInfo>() {
+            @Override
+            public UserInfo apply(UserInfo existing, UserInfo fresh) {
+                //the certificate issued for the old key is not given anymore
+                if (!existing.getPublicKey().equals(newPublicKey))
+                    issuedCertificates.remove(userKey);
+
+                UserInfo rotated = new UserInfo();
+                rotated.setIdentity(existing.getIdentity());
+                rotated.setPublicKey(newPublicKey);
+                rotated.setAccountNumber(existing.getAccountNumber());
+                rotated.setCreditLimit(existing.getCreditLimit());
+                return rotated;
+            }
+        });
 
-            //update the public key of the existing userInfo
-            int indexOfUserInfo = registeredUsers.indexOf(userInfo);
-            registeredUsers.get(indexOfUserInfo).setPublicKey(userPublicKey);
-            return true;
-        }
-        else {
-            System.out.println("Broker.registerNewUser: new userInfo!");
-            registeredUsers.add(userInfo);
-            return true;
-        }
+        if (registered != userInfo)
+            Log.debug("Broker.registerNewUser: userInfo exists!");
+        else
+            Log.debug("Broker.registerNewUser: new userInfo!");
+
+        return true;
     }
 
     public boolean registerNewVendor(byte[] vendorInfoBytes) {
@@ -224,19 +275,8 @@ public class Broker {
         byte[] publicKeyBytes = new byte[lengthOfPublicKey];
         publicKeyBytes = Arrays.copyOfRange(vendorInfoBytes, indexStart, indexEnd);
 
-        PublicKey vendorPublicKey = null;
-        X509EncodedKeySpec keySpec = new X509EncodedKeySpec(publicKeyBytes);
-        KeyFactory keyFactory = null;
-        try {
-            keyFactory = KeyFactory.getInstance("RSA");
-            vendorPublicKey = keyFactory.generatePublic(keySpec);
-
-            //System.out.println("Broker.registerNewVendor: vendorPublicKey=" + ((RSAPublicKey) vendorPublicKey).getModulus().toString());
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (InvalidKeySpecException e) {
-            e.printStackTrace();
-        }
+        PublicKey vendorPublicKey = PublicKeyCache.getInstance().getPublicKey(publicKeyBytes);
+        //System.out.println("Broker.registerNewVendor: vendorPublicKey=" + ((RSAPublicKey) vendorPublicKey).getModulus().toString());
 
         indexStart = indexEnd;
         indexEnd += 8;
@@ -255,30 +295,59 @@ public class Broker {
         vendorInfo.setPublicKey(vendorPublicKey);
         vendorInfo.setAccountNumber(vendorAccountNumber);
 
-        if (registeredVendors.contains(vendorInfo)) {
-            System.out.println("Broker.registerNewVendor: vendorInfoBytes exists!");
+        //register the vendor, or replace the public key of the vendor already registered, as a single operation
+        final PublicKey newPublicKey = vendorPublicKey;
+        VendorInfo registered = registeredVendors.merge(new ByteKey(vendorIdentity), vendorInfo, new BiFunction<VendorInfo, VendorInfo, VendorInfo>() {
+            @Override
+            public VendorInfo apply(VendorInfo existing, VendorInfo fresh) {
+                VendorInfo rotated = new VendorInfo();
+                rotated.setIdentity(existing.getIdentity());
+                rotated.setPublicKey(newPublicKey);
+                rotated.setAccountNumber(existing.getAccountNumber());
+                return rotated;
+            }
+        });
 
-            //update the public key of the existing vendorInfoBytes
-            int indexOfUserInfo = registeredVendors.indexOf(vendorInfo);
-            registeredVendors.get(indexOfUserInfo).setPublicKey(vendorPublicKey);
-            return true;
-        }
-        else {
-            System.out.println("Broker.registerNewVendor: new vendorInfoBytes!");
-            registeredVendors.add(vendorInfo);
-            return true;
-        }
+        if (registered != vendorInfo)
+            Log.debug("Broker.registerNewVendor: vendorInfoBytes exists!");
+        else
+            Log.debug("Broker.registerNewVendor: new vendorInfoBytes!");
+
+        return true;
     }
 
     /**
      * Get the certificate for the user given by the userIdentity
+     * The certificate issued before is given again, as long as the key of the user is the same and the certificate
+     * doesn't expire in less than CERTIFICATE_RENEWAL_MARGIN_MILLIS; only then a new one is signed
      * @param userIdentity the identity of the user
      * @return the certificate
      */
     public byte[] getUserCertificate(byte[] userIdentity) {
-        System.out.println("Broker.getUserCertificate");
+        Log.debug("Broker.getUserCertificate");
         UserInfo userInfo = getUserWithIdentity(userIdentity);
 
+        IssuedCertificate issued = issuedCertificates.get(ByteKey.view(userIdentity, 0, userIdentity.length));
+        if (issued != null && issued.userPublicKey.equals(userInfo.getPublicKey()))
+            return issued.certificate.clone();
+
+        long start = System.nanoTime();
+        LocalDateTime currentDateLocalDateTime = LocalDateTime.now();
+        LocalDateTime expireDateLocalDate = currentDateLocalDateTime.plusMonths(1);
+        long expireDateLong = expireDateLocalDate.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        byte[] certificate = signUserCertificate(userIdentity, userInfo, expireDateLong);
+        certificateSignMetrics.record(start, true);
+
+        issuedCertificates.put(new ByteKey(userIdentity), new IssuedCertificate(userInfo.getPublicKey(), certificate),
+                expireDateLong - Constants.CERTIFICATE_RENEWAL_MARGIN_MILLIS);
+        return certificate.clone();
+    }
+
+    /**
+     * Build the certificate of a user and sign it with the private key of the Broker
+     * @param expireDateLong the expiry date of the certificate, in milliseconds
+     */
+    private byte[] signUserCertificate(byte[] userIdentity, UserInfo userInfo, long expireDateLong) {
         int size = this.identity.length + userInfo.getIdentity().length;
         size += this.publicKey.getEncoded().length + userInfo.getPublicKey().getEncoded().length;
         size += 8; //the date is stored as 64 bits long value, therefore 8 bytes
@@ -310,9 +379,6 @@ public class Broker {
         }
 
         //copy the expire date of the message
-        LocalDateTime currentDateLocalDateTime = LocalDateTime.now();
-        LocalDateTime expireDateLocalDate = currentDateLocalDateTime.plusMonths(1);
-        long expireDateLong = expireDateLocalDate.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
         byte[] expireDateBytes =  ByteBuffer.allocate(8).putLong(expireDateLong).array();
         for (int i = 0; i < expireDateBytes.length; ++i, ++index) {
             message[index] = expireDateBytes[i];
@@ -336,19 +402,7 @@ public class Broker {
         byte[] signedHash = null;
 
         //sign the message
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA1WithRSA");
-            sig.initSign(getPrivateKey());
-            sig.update(message);
-            signedHash = sig.sign();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-        } catch (SignatureException e) {
-            e.printStackTrace();
-        }
+        signedHash = Crypto.sign(getPrivateKey(), message);
 
         size += signedHash.length; //the length of the signed hash
         byte[] certificate = new byte[size];
@@ -367,17 +421,7 @@ public class Broker {
     }
 
     private UserInfo getUserWithIdentity(byte[] userIdentity) {
-        for (UserInfo userInfo : registeredUsers)
-            if (Arrays.equals(userInfo.getIdentity(), userIdentity))
-                return userInfo;
-        return null;
-    }
-
-    private VendorInfo getVendorWithIdentity(byte[] vendorIdentity) {
-        for (VendorInfo vendorInfo : registeredVendors)
-            if (Arrays.equals(vendorInfo.getIdentity(), vendorIdentity))
-                return vendorInfo;
-        return null;
+        return registeredUsers.get(ByteKey.view(userIdentity, 0, userIdentity.length));
     }
 
     public byte[] getUserIdentityFromPersonalInfo(byte[] personalInfo) {
@@ -391,112 +435,238 @@ public class Broker {
     }
 
     /**
-     * This is the third step of the scheme
-     * @param message the message
-     * @return true if the action completed with success, false otherwise
+     * Get the redeem pipeline, to watch its queues and latencies
+     * @return the redeem pipeline
      */
-    public boolean redeem(byte[] message) {
-        System.out.println("Broker.redeem with vendorInfo");
+    public RedeemPipeline getRedeemPipeline() {
+        return this.redeemPipeline;
+    }
+
+    /**
+     * Get the store of the redeemed hash chains, to watch its size
+     * @return the store of the redeemed roots
+     */
+    public RedeemedRootStore getRedeemedRootStore() {
+        return this.redeemedRoots;
+    }
 
-        //check commit(U)
-        //extract commit(U) from the message
-        //get the unsigned part
-        int size = 932; //the no of bytes of the message without the signed hash
-        byte[] unsignedMessage = Arrays.copyOfRange(message, 0, size);
+    /**
+     * Redeem many messages, verifying them in parallel
+     * The messages are independent: each one is paid or refused as if it was sent alone with redeem
+     * @param messages the redeem messages
+     * @return the result of every message, in the same order
+     */
+    public boolean[] redeemBatch(byte[][] messages) {
+        Log.debug("Broker.redeemBatch: noOfMessages={}", messages.length);
+        return redeemPipeline.redeemAll(messages);
+    }
+
+    /**
+     * Pay the vendor for the paywords of a redeem message, once the commit and the paywords are checked
+     * The work is done by the stages of the redeem pipeline; this waits for the result
+     * The format of the message is:
+     *  - the signed commit: vendor identity, user certificate, c0, the date, the chain length and the user signature
+     *  - cl, the last payword received by the vendor (20 bytes)
+     *  - l, the index of cl (4 bytes)
+     * @param message the redeem message
+     * @return true if the vendor was paid, false otherwise
+     */
+    public boolean redeem(byte[] message) {
+        Log.debug("Broker.redeem with vendorInfo");
+        return redeemPipeline.redeem(message);
+    }
 
-        //get the signed hash
-        byte[] signedHash = Arrays.copyOfRange(message, size, 1060);
+    /**
+     * Redeem stage 1: extract the fields of the message, find the user and the vendor, check the certificate expiry
+     * @param job the redeem
+     * @return true if the redeem goes on, false if it is refused
+     */
+    boolean decodeRedeem(RedeemJob job) {
+        if (job.message.length != RedeemMessageView.LENGTH) {
+            Log.warn("Broker.redeem: bad message length={}! => don't pay the vendor!", job.message.length);
+            return false;
+        }
 
-        //get the vendor identity
-        byte[] vendorIdentity = Arrays.copyOfRange(message, 0, 128);
+        //commit(U), c(l), l: the fields are read in place in the message
+        RedeemMessageView message = new RedeemMessageView(job.message);
+        CommitView commit = message.getCommit();
+        CertificateView userCertificate = commit.getCertificate();
+        job.view = message;
 
-        //get the user identity
-        byte[] userCertificate = Arrays.copyOfRange(unsignedMessage, 128, 860);
-        byte[] userIdentity = Arrays.copyOfRange(userCertificate, 128, 256);
-        UserInfo userInfo = getUserWithIdentity(userIdentity);
+        //find the user and the vendor
+        job.userInfo = registeredUsers.get(userCertificate.getUserIdentityKey());
+        job.vendorInfo = registeredVendors.get(commit.getVendorIdentityKey());
         //System.out.println("Broker.redeem: userInfo=" + userInfo);
+        if (job.userInfo == null || job.vendorInfo == null) {
+            Log.warn("Broker.redeem: user or vendor not registered! => don't pay the vendor!");
+            return false;
+        }
 
-        //check User signature on commit(U)
-        Signature signature = null;
-        boolean result = false;
-        try {
-            signature = Signature.getInstance("SHA1WithRSA");
-            signature.initVerify(userInfo.getPublicKey());
-            signature.update(unsignedMessage);
-            result = signature.verify(signedHash);
-            System.out.println("Broker.redeem: verify User signature on commit result: " + result);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (SignatureException e) {
-            e.printStackTrace();
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
+        //get c0 - the root of the hash chain from the commit
+        job.c0 = commit.copyRoot(Constants.PaywordValue.ONE);
+
+        //get cl - the l-th payword
+        job.cl = message.getPayment().copyPayword();
+
+        //get l - the index of the last payment
+        job.l = message.getPayment().getPaywordNo();
+
+        //the digest of the signed commit identifies a commit that was already verified
+        job.commitDigest = commit.getDigest();
+
+        //the commit is valid only until the user certificate expires; afterwards its chain root is forgotten
+        job.certificateExpireDate = userCertificate.getExpireDate();
+        if (job.certificateExpireDate < System.currentTimeMillis()) {
+            Log.warn("Broker.redeem: user certificate expired! => don't pay the vendor!");
+            return false;
         }
 
-        if (result) {
-            //check last payment (apply hash function l times)
-            //get c0 - the root of the hash chain from the commit
-            byte[] c0 = Arrays.copyOfRange(unsignedMessage, 860, 880); //get 20 bytes
-            //System.out.println("Broker.redeem: c0=" + Arrays.toString(c0));
-
-            //apply the hash function l times to see if the resulting c0 is equal with the given c0
-            //get cl - the l-th payword
-            byte[] cl = Arrays.copyOfRange(message, 1060, 1080);
-            //System.out.println("Broker.redeem: cl=" + Arrays.toString(cl));
-
-            //get l - the index of the last payment
-            int l = ByteBuffer.wrap(message, 1080, 4).getInt();
-            //System.out.println("Broker.redeem: l=" + l);
-
-            //apply the hash function l times
-            Payword last = new Payword(); //c(l)
-            last.setBytes(cl);
-            for (int i = l - 1; i >= 0; --i) {
-                //System.out.println("Broker.redeem: l=" + i + " cl=" + Arrays.toString(last.getBytes()));
-                Payword current = new Payword(last);
-
-                last = current;
-            }
-            byte[] c0computed = last.getBytes();
-            //System.out.println("Broker.redeem: c0computed=" + Arrays.toString(c0computed));
-            Payword rootOfPayment = new Payword();
-            rootOfPayment.setBytes(c0computed);
-
-            if (Arrays.equals(c0, c0computed)) {
-                System.out.println("Broker.redeem: c0 equals!");
-                //check if payment is authentic and not already redeemed
-                //check if payment is not redeemed
-                if (paymentsRedeemed.contains(rootOfPayment)) {
-                    System.out.println("Broker.redeem: payment already done! => don't pay the vendor!");
-                    result = false;
-                }
-                else {
-                    System.out.println("Broker.redeem: first payment! => pay the vendor");
-                    //make payment to Vendor and take money from User
-                    System.out.println("Broker.redeem: lastPaymentIndex=" + l);
-
-
-                    //TODO: Implement Bank as server
-                    //Proof of Concept: take money from the User and add them to the Vendor
-                    VendorInfo vendorInfo = getVendorWithIdentity(vendorIdentity);
-                    //System.out.println("Broker.redeem: vendorInfo=" + vendorInfo);
-                    bank.takeMoneyFromAccount(userInfo.getAccountNumber(), l + 1);
-                    bank.addMoneyToAccount(vendorInfo.getAccountNumber(), l + 1);
-                    paymentsRedeemed.add(rootOfPayment);
-                    result = true;
-                }
+        return true;
+    }
+
+    /**
+     * Redeem stage 2: check the signature of the user on the commit, unless the same commit was already redeemed
+     * @param job the redeem
+     * @return true if the redeem goes on, false if it is refused
+     */
+    boolean verifyRedeemSignature(RedeemJob job) {
+        job.redeemState = redeemedRoots.get(job.c0);
+
+        RedeemState redeemState = job.redeemState;
+        if (redeemState != null) {
+            if (Arrays.equals(redeemState.getCommitDigest(), job.commitDigest)) {
+                Log.debug("Broker.redeem: commit already verified! => skip User signature check");
+                return true;
             } else {
-                System.out.println("Broker.redeem: c0 not equals!");
-                result = false;
+                Log.warn("Broker.redeem: hash chain already redeemed with another commit! => don't pay the vendor!");
+                return false;
             }
         }
 
-        if (result)
-            System.out.println("Broker.redeem: redeem OK");
-        else
-            System.out.println("Broker.redeem: redeem NOK");
+        //check User signature on commit(U)
+        boolean result = job.view.getCommit().verifyUserSignature(job.userInfo.getPublicKey());
+        Log.debug("Broker.redeem: verify User signature on commit result: {}", result);
+
+        return result;
+    }
+
+    /**
+     * Redeem stage 3: check the last payment (apply the hash function until the checkpoint is reached)
+     * @param job the redeem
+     * @return true if the redeem goes on, false if it is refused
+     */
+    boolean verifyRedeemChain(RedeemJob job) {
+        RedeemState redeemState = job.redeemState;
+        int l = job.l;
+
+        //the payword must be in the chain of the commit, checked before hashing anything
+        int chainLength = job.view.getCommit().getChainLength();
+        if (l < 0 || l >= chainLength) {
+            Log.warn("Broker.redeem: payword index l={} outside of the chain of length {}! => don't pay the vendor!", l, chainLength);
+            return false;
+        }
+
+        //the checkpoint is c0 for the first redeem and the last accepted payword afterwards (h(c0), -1 after a released first redeem)
+        int checkpointIndex = redeemState != null ? redeemState.getLastIndex() : 0;
+        byte[] checkpoint = redeemState != null ? redeemState.getLastPayword().getBytes() : job.c0;
+
+        if (l <= checkpointIndex && redeemState != null) {
+            Log.warn("Broker.redeem: payment already done! => don't pay the vendor!");
+            return false;
+        }
+
+        //apply the hash function (l - checkpointIndex) times, in place on a copy of c(l)
+        long start = System.nanoTime();
+        byte[] last = Arrays.copyOf(job.cl, job.cl.length);
+        Crypto.hashIterated(last, 0, l - checkpointIndex);
+        boolean result = Arrays.equals(checkpoint, last);
+        chainVerifyMetrics.record(start, result);
+
+        if (!result) {
+            Log.warn("Broker.redeem: checkpoint not equals!");
+            return false;
+        }
+
+        Log.debug("Broker.redeem: checkpoint equals! checkpointIndex={}", checkpointIndex);
+        job.checkpointIndex = checkpointIndex;
+        //the first redeem pays c0 too, the next ones only the paywords after the checkpoint
+        job.sumToPay = redeemState != null ? l - checkpointIndex : l + 1;
+        return true;
+    }
+
+    /**
+     * Redeem stage 4: reserve the paywords; fails if another redeem of the same chain was accepted in the meantime
+     * The reservation is stored before the money is transferred, so a crash can't make the Broker pay twice
+     * @param job the redeem
+     * @return true if the redeem goes on, false if it is refused
+     */
+    boolean reserveRedeem(RedeemJob job) {
+        boolean result;
+        if (job.redeemState == null) {
+            int putResult = redeemedRoots.putIfAbsent(job.c0, job.commitDigest, job.l, job.cl, job.certificateExpireDate);
+            if (putResult == RedeemedRootStore.FULL) {
+                Log.error("Broker.redeem: no room left to record the redeemed hash chain! => don't pay the vendor!");
+                return false;
+            }
+            result = putResult == RedeemedRootStore.ADDED;
+        } else {
+            result = redeemedRoots.advance(job.c0, job.checkpointIndex, job.l, job.cl);
+        }
+
+        if (!result)
+            Log.warn("Broker.redeem: concurrent redeem of the same hash chain! => don't pay the vendor!");
 
         return result;
     }
 
+    /**
+     * Redeem stage 5: make payment to Vendor and take money from User
+     * If no money was moved the reservation is released, so the vendor can redeem the same paywords again
+     * @param job the redeem, with its paywords reserved
+     * @return true if the vendor was paid, false otherwise
+     */
+    boolean settleRedeem(RedeemJob job) {
+        Log.debug("Broker.redeem: lastPaymentIndex={} sumToPay={}", job.l, job.sumToPay);
+
+        //TODO: Implement Bank as server
+        //Proof of Concept: take money from the User and add them to the Vendor
+        boolean result;
+        try {
+            result = bank.transfer(job.userInfo.getAccountNumber(), job.vendorInfo.getAccountNumber(), job.sumToPay);
+            if (!result)
+                Log.warn("Broker.redeem: accounts not found in the Bank! => no money transferred");
+        } catch (IOException e) {
+            Log.error("Broker.redeem: the transfer can't be journaled! => no money transferred", e);
+            result = false;
+        }
+
+        if (!result)
+            releaseRedeem(job);
+
+        return result;
+    }
+
+    /**
+     * Move the checkpoint of a hash chain back to where it was before a redeem that was reserved but not paid
+     * After a first redeem there was no checkpoint: it goes back before c0, to h(c0) with the index -1, so the next
+     * redeem pays c0 again. The checkpoint stays if another redeem of the chain moved it in the meantime
+     * @param job the redeem, with its paywords reserved
+     */
+    private void releaseRedeem(RedeemJob job) {
+        int previousIndex;
+        byte[] previousPayword;
+        if (job.redeemState == null) {
+            previousIndex = -1;
+            previousPayword = Crypto.hashMessage(job.c0);
+        } else {
+            previousIndex = job.checkpointIndex;
+            previousPayword = job.redeemState.getLastPayword().getBytes();
+        }
+
+        if (redeemedRoots.advance(job.c0, job.l, previousIndex, previousPayword))
+            Log.warn("Broker.redeem: reservation of l={} released, checkpointIndex={}", job.l, previousIndex);
+        else
+            Log.error("Broker.redeem: the reservation of l={} can't be released, the paywords up to it are lost to the vendor!", job.l);
+    }
+
 }
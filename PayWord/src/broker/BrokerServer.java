@@ -1,22 +1,36 @@
 package broker;
 
+import backend.RedeemBatch;
+import backend.RedeemMessageView;
 import utils.Constants;
-import vendor.VendorInfo;
+import utils.FramedTransport;
+import utils.NioServer;
+import utils.ServerMode;
+import utils.VirtualThreads;
+import utils.Log;
+import utils.CommandMetrics;
+import utils.Metrics;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
 
 
 public class BrokerServer implements Runnable {
 
     public static final int PORT = 1994;
+    //connections waiting to be accepted; the default (50) refuses bursts of clients
+    private static final int BACKLOG = 1024;
+    //the identity, the public key, the account number and the credit limit, with room for bigger keys
+    private static final int MAX_REGISTER_LENGTH = 4096;
 
     private Socket connection;
     private int connectionID;
 
-    private Broker broker = Broker.getInstance();
+    private static Broker broker = Broker.getInstance();
+    private static final CommandMetrics commandMetrics = Metrics.getInstance().getCommandMetrics("broker");
 
     public BrokerServer(Socket connection, int connectionID) {
         this.connection = connection;
@@ -24,17 +38,65 @@ public class BrokerServer implements Runnable {
     }
 
 
+    /**
+     * Start the Broker server
+     * @param args the server mode: thread (default), virtual or nio
+     */
     public static void main(String[] args) {
+        ServerMode serverMode = ServerMode.THREAD;
+        if (args.length != 0) {
+            serverMode = ServerMode.fromString(args[0]);
+        }
+
+        //rebuild the accounts settled before a restart and journal every change from now on
+        if (!Bank.getInstance().openLedger(Constants.LEDGER_FILE_NAME, true)) {
+            Log.error("BrokerServer: the journal {} can't be opened! => don't start", Constants.LEDGER_FILE_NAME);
+            return;
+        }
+        //keep the redeemed hash chains across restarts, so a commit can't be paid twice
+        if (!Broker.getInstance().openRedeemedRootStore(Constants.REDEEMED_ROOTS_FILE_NAME, Constants.REDEEMED_ROOTS_CAPACITY)) {
+            Log.error("BrokerServer: the redeemed roots {} can't be opened! => don't start", Constants.REDEEMED_ROOTS_FILE_NAME);
+            return;
+        }
+
+        serve(PORT, serverMode);
+    }
+
+    /**
+     * Accept and handle connections until the process ends
+     * @param port the port to listen on
+     * @param serverMode how the connections are handled
+     */
+    public static void serve(int port, ServerMode serverMode) {
+        Log.info("BrokerServer.serve: port={} serverMode={}", port, serverMode);
+
+        if (serverMode == ServerMode.NIO) {
+            int noOfWorkers = Runtime.getRuntime().availableProcessors();
+            new NioServer(port, BACKLOG, new NioHandler(), noOfWorkers, 64 * noOfWorkers).run();
+            return;
+        }
+
+        ExecutorService virtualThreads = null;
+        if (serverMode == ServerMode.VIRTUAL) {
+            virtualThreads = VirtualThreads.newPerTaskExecutor();
+            if (virtualThreads == null)
+                Log.warn("BrokerServer.serve: no virtual threads in this JVM! => use a thread per connection");
+        }
+
         int count = 0;
 
         try {
-            ServerSocket serverSocket = new ServerSocket(PORT);
+            ServerSocket serverSocket = new ServerSocket(port, BACKLOG);
 
             while (true) {
                 Socket connection = serverSocket.accept();
                 Runnable runnable = new BrokerServer(connection, ++count);
-                Thread thread = new Thread(runnable);
-                thread.start();
+                if (virtualThreads != null) {
+                    virtualThreads.execute(runnable);
+                } else {
+                    Thread thread = new Thread(runnable);
+                    thread.start();
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -44,19 +106,24 @@ public class BrokerServer implements Runnable {
     @Override
     public void run() {
         try {
-            DataInputStream dataInputStream = new DataInputStream(connection.getInputStream());
-            DataOutputStream dataOutputStream = new DataOutputStream(connection.getOutputStream());
+            FramedTransport transport = new FramedTransport(connection);
 
             int commandID;
 
-            while ((commandID = dataInputStream.readInt()) != Constants.CommunicationProtocol.END_COMMUNICATION) {
-                System.out.println("BrokerServer.run: commandID=" + commandID);
+            while ((commandID = transport.readInt()) != Constants.CommunicationProtocol.END_COMMUNICATION) {
+                Log.debug("BrokerServer.run: commandID={}", commandID);
+
+                //a bad payload length closes the connection
+                byte[] payload = null;
+                if (hasPayload(commandID)) {
+                    payload = transport.readPayload(getMaxPayloadLength(commandID));
+                }
 
                 //Do here all things involving the Broker depending on what the client asked
-                processCommand(commandID, dataInputStream, dataOutputStream);
+                transport.sendResponse(processCommand(commandID, payload));
             }
 
-            System.out.println("BrokerServer.run: Communication with the client ended!");
+            Log.debug("BrokerServer.run: Communication with the client ended!");
 
         }
         catch (Exception e) {
@@ -72,119 +139,173 @@ public class BrokerServer implements Runnable {
         }
     }
 
-    private void processCommand(int commandID, DataInputStream dataInputStream, DataOutputStream dataOutputStream) {
-        System.out.println("BrokerServer.processCommand: commandID=" + commandID);
+    private static boolean hasPayload(int commandID) {
         switch (commandID) {
             case Constants.CommunicationProtocol.USER_REGISTER_TO_BROKER:
-                userRegisterToBroker(dataInputStream, dataOutputStream);
-                break;
+            case Constants.CommunicationProtocol.VENDOR_REGISTER_TO_BROKER:
+            case Constants.CommunicationProtocol.REDEEM:
+            case Constants.CommunicationProtocol.REDEEM_BATCH:
+                return true;
+
+            default:
+                return false;
+        }
+    }
 
+    /**
+     * @param commandID a command with a payload
+     * @return the maximum length of its payload
+     */
+    private static int getMaxPayloadLength(int commandID) {
+        switch (commandID) {
+            case Constants.CommunicationProtocol.USER_REGISTER_TO_BROKER:
             case Constants.CommunicationProtocol.VENDOR_REGISTER_TO_BROKER:
-                vendorRegisterToBroker(dataInputStream, dataOutputStream);
-                break;
+                return MAX_REGISTER_LENGTH;
 
             case Constants.CommunicationProtocol.REDEEM:
-                redeem(dataInputStream, dataOutputStream);
-                break;
+                return RedeemMessageView.LENGTH;
+
+            case Constants.CommunicationProtocol.REDEEM_BATCH:
+                return RedeemBatch.MAX_LENGTH;
 
             default:
-                break;
+                return 0;
         }
     }
 
-    private boolean userRegisterToBroker(DataInputStream dataInputStream, DataOutputStream dataOutputStream) {
-        System.out.println("BrokerServer.userRegisterToBroker");
+    /**
+     * Handle a command
+     * @param commandID the command
+     * @param payload the payload received with the command
+     * @return the bytes of the response
+     */
+    private static byte[] processCommand(int commandID, byte[] payload) {
+        Log.debug("BrokerServer.processCommand: commandID={}", commandID);
+        long start = System.nanoTime();
+        byte[] response = null;
         try {
-            //wait for user personal info length
-            int lengthOfUserPersonalInfo = dataInputStream.readInt();
-
-            //wait for user personal info
-            byte[] userPersonalInfo = new byte[lengthOfUserPersonalInfo];
-            dataInputStream.read(userPersonalInfo);
-
-            //send data to broker instance
-            boolean resultOfRegister = broker.registerNewUser(userPersonalInfo);
-
-            if (resultOfRegister) {
-                System.out.println("BrokerServer.userRegisterToBroker: register OK");
-                dataOutputStream.writeInt(Constants.CommunicationProtocol.OK);
-
-                byte[] userCertificate = broker.getUserCertificate(broker.getUserIdentityFromPersonalInfo(userPersonalInfo));
-                //System.out.println("BrokerServer.userRegisterToBroker: userCertificate=" + Arrays.toString(userCertificate));
-                //send the user certificate length
-                dataOutputStream.writeInt(userCertificate.length);
-
-                //send the user certificate
-                dataOutputStream.write(userCertificate);
-            } else {
-                System.out.println("BrokerServer.userRegisterToBroker: register NOK");
-                dataOutputStream.writeInt(Constants.CommunicationProtocol.NOK);
-            }
+            response = handleCommand(commandID, payload);
+            return response;
+        } finally {
+            commandMetrics.get(commandID).recordResponse(start, response);
+        }
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+    private static byte[] handleCommand(int commandID, byte[] payload) {
+        switch (commandID) {
+            case Constants.CommunicationProtocol.USER_REGISTER_TO_BROKER:
+                return userRegisterToBroker(payload);
+
+            case Constants.CommunicationProtocol.VENDOR_REGISTER_TO_BROKER:
+                return vendorRegisterToBroker(payload);
+
+            case Constants.CommunicationProtocol.REDEEM:
+                return redeem(payload);
+
+            case Constants.CommunicationProtocol.REDEEM_BATCH:
+                return redeemBatch(payload);
+
+            default:
+                return new byte[0];
         }
+    }
 
-        return true;
+    private static byte[] userRegisterToBroker(byte[] userPersonalInfo) {
+        Log.debug("BrokerServer.userRegisterToBroker");
+
+        //send data to broker instance
+        boolean resultOfRegister = broker.registerNewUser(userPersonalInfo);
+
+        if (resultOfRegister) {
+            Log.info("BrokerServer.userRegisterToBroker: register OK");
+
+            byte[] userCertificate = broker.getUserCertificate(broker.getUserIdentityFromPersonalInfo(userPersonalInfo));
+            //System.out.println("BrokerServer.userRegisterToBroker: userCertificate=" + Arrays.toString(userCertificate));
+            //send OK, the user certificate length and the user certificate
+            return ByteBuffer.allocate(2 * Constants.INT_NO_OF_BYTES + userCertificate.length)
+                    .putInt(Constants.CommunicationProtocol.OK)
+                    .putInt(userCertificate.length)
+                    .put(userCertificate)
+                    .array();
+        } else {
+            Log.warn("BrokerServer.userRegisterToBroker: register NOK");
+            return response(Constants.CommunicationProtocol.NOK);
+        }
     }
 
-    private boolean vendorRegisterToBroker(DataInputStream dataInputStream, DataOutputStream dataOutputStream) {
-        System.out.println("BrokerServer.vendorRegisterToBroker");
-        try {
-            //wait for user personal info length
-            int lengthOfVendorInfo = dataInputStream.readInt();
-
-            //wait for user personal info
-            byte[] vendorInfo = new byte[lengthOfVendorInfo];
-            dataInputStream.read(vendorInfo);
-
-            //send data to broker instance
-            boolean resultOfRegister = broker.registerNewVendor(vendorInfo);
-
-            if (resultOfRegister) {
-                System.out.println("BrokerServer.vendorRegisterToBroker: send OK");
-                dataOutputStream.writeInt(Constants.CommunicationProtocol.OK);
-            } else {
-                System.out.println("BrokerServer.vendorRegisterToBroker: send NOK");
-                dataOutputStream.writeInt(Constants.CommunicationProtocol.NOK);
-            }
+    private static byte[] vendorRegisterToBroker(byte[] vendorInfo) {
+        Log.debug("BrokerServer.vendorRegisterToBroker");
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+        //send data to broker instance
+        boolean resultOfRegister = broker.registerNewVendor(vendorInfo);
+
+        if (resultOfRegister) {
+            Log.debug("BrokerServer.vendorRegisterToBroker: send OK");
+            return response(Constants.CommunicationProtocol.OK);
+        } else {
+            Log.warn("BrokerServer.vendorRegisterToBroker: send NOK");
+            return response(Constants.CommunicationProtocol.NOK);
         }
+    }
+
+    private static byte[] redeem(byte[] redeemMessageBytes) {
+        Log.debug("BrokerServer.redeem");
+
+        //Handle the redeem
+        //System.out.println("BrokerServer.redeem: redeemMessage=" + Arrays.toString(redeemMessageBytes));
 
-        return true;
+        boolean resultOfRedeem = broker.redeem(redeemMessageBytes);
+
+        if (resultOfRedeem) {
+            return response(Constants.CommunicationProtocol.OK);
+        } else {
+            return response(Constants.CommunicationProtocol.NOK);
+        }
     }
 
-    private boolean redeem(DataInputStream dataInputStream, DataOutputStream dataOutputStream) {
-        System.out.println("BrokerServer.redeem");
-        try {
-            //wait for redeem message length
-            int lengthOfRedeemMessage = dataInputStream.readInt();
+    private static byte[] redeemBatch(byte[] redeemBatchBytes) {
+        Log.debug("BrokerServer.redeemBatch");
 
-            //wait for redeem message bytes
-            byte[] redeemMessageBytes = new byte[lengthOfRedeemMessage];
-            dataInputStream.read(redeemMessageBytes);
+        byte[][] redeemMessages = new RedeemBatch(redeemBatchBytes).getRedeemMessages();
+        if (redeemMessages == null) {
+            //not a valid batch: answer with no results
+            Log.debug("BrokerServer.redeemBatch: invalid batch!");
+            return RedeemBatch.getResponse(new boolean[0]);
+        }
 
-            //Handle the redeem
-            //System.out.println("BrokerServer.redeem: redeemMessage=" + Arrays.toString(redeemMessageBytes));
+        return RedeemBatch.getResponse(broker.redeemBatch(redeemMessages));
+    }
 
-            boolean resultOfRedeem = broker.redeem(redeemMessageBytes);
+    private static byte[] response(int code) {
+        return ByteBuffer.allocate(Constants.INT_NO_OF_BYTES).putInt(code).array();
+    }
 
-            if (resultOfRedeem) {
-                dataOutputStream.writeInt(Constants.CommunicationProtocol.OK);
-            } else {
-                dataOutputStream.writeInt(Constants.CommunicationProtocol.NOK);
-            }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+    /**
+     * The Broker commands for the NIO server; the RSA and hash chain work is done by the workers
+     */
+    private static class NioHandler implements NioServer.Handler {
+
+        @Override
+        public boolean hasPayload(int commandID) {
+            return BrokerServer.hasPayload(commandID);
         }
 
+        @Override
+        public int getMaxPayloadLength(int commandID) {
+            return BrokerServer.getMaxPayloadLength(commandID);
+        }
 
-        return true;
+        @Override
+        public boolean isExpensive(int commandID) {
+            return commandID == Constants.CommunicationProtocol.REDEEM
+                    || commandID == Constants.CommunicationProtocol.REDEEM_BATCH
+                    || commandID == Constants.CommunicationProtocol.USER_REGISTER_TO_BROKER;
+        }
+
+        @Override
+        public byte[] handle(NioServer.Session session, int commandID, byte[] payload) {
+            return processCommand(commandID, payload);
+        }
     }
 }
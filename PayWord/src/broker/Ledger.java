@@ -0,0 +1,359 @@
+package broker;
+
+import utils.Log;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+
+/**
+ * Append-only journal of every change made to the balances of the Bank
+ * Each record has a fixed length:
+ *  - 8 bytes for the sequence number
+ *  - 4 bytes for the record type (OPEN, ADD or TRANSFER)
+ *  - 8 bytes for the first account number
+ *  - 8 bytes for the second account number (only for TRANSFER)
+ *  - 8 bytes for the sum
+ *  - 4 bytes for the CRC32 of the previous 36 bytes
+ * A record is written to the file (and forced to the disk) before the balances are changed in memory.
+ * With group commit the records of all the threads that append in the same time are written with a single fsync
+ */
+public class Ledger implements Closeable {
+
+    public static final int RECORD_LENGTH = 40;
+
+    public static final int OPEN = 1;
+    public static final int ADD = 2;
+    public static final int TRANSFER = 3;
+
+    private static final int CHECKSUMMED_LENGTH = RECORD_LENGTH - 4;
+    private static final int REPLAY_BUFFER_RECORDS = 4096;
+
+    private final FileChannel channel;
+    private final boolean groupCommit;
+
+    private final Object lock = new Object();
+    private ByteBuffer pending;
+    private ByteBuffer spare;
+    private long appendedSequence;
+    private long durableSequence;
+    private IOException failure;
+    private boolean replayed;
+    private boolean closed;
+    private Thread flusher;
+
+    /**
+     * Open (or create) the journal file
+     * @param path the path of the journal file
+     * @param groupCommit true to force the records of concurrent appends together, false for one fsync per record
+     * @throws IOException if the file can't be opened
+     */
+    public Ledger(String path, boolean groupCommit) throws IOException {
+        this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.groupCommit = groupCommit;
+        this.pending = ByteBuffer.allocate(RECORD_LENGTH * 256);
+        this.spare = ByteBuffer.allocate(RECORD_LENGTH * 256);
+    }
+
+    /**
+     * Apply all the records from the journal to the accounts, then start accepting new records
+     * Only the tail of the file may be invalid: the records of the last write, torn by a crash, were never
+     * acknowledged and are cut off. A corrupted record followed by valid ones, or a gap in the sequence numbers, means
+     * acknowledged transfers would be lost, so nothing is applied and the journal is left as it is
+     * @param accounts the accounts to rebuild
+     * @return the number of records applied
+     * @throws IOException if the file can't be read, or is corrupted before its tail
+     */
+    public long replay(AccountIndex accounts) throws IOException {
+        //check the whole journal before changing any balance
+        long end = findEnd();
+        if (channel.size() != end) {
+            Log.warn("Ledger.replay: cut the torn records at the end of the journal, at {} bytes, was {} bytes", end, channel.size());
+            channel.truncate(end);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_LENGTH * REPLAY_BUFFER_RECORDS);
+        long position = 0;
+        long records = 0;
+        long lastSequence = 0;
+
+        channel.position(0);
+        while (position < end && channel.read(buffer) > 0) {
+            buffer.flip();
+            while (buffer.remaining() >= RECORD_LENGTH && position < end) {
+                long sequence = buffer.getLong();
+                int type = buffer.getInt();
+                long firstAccountNo = buffer.getLong();
+                long secondAccountNo = buffer.getLong();
+                double sum = buffer.getDouble();
+                buffer.getInt();
+
+                apply(accounts, type, firstAccountNo, secondAccountNo, sum);
+                lastSequence = sequence;
+                position += RECORD_LENGTH;
+                ++records;
+            }
+            buffer.compact();
+        }
+        channel.position(end);
+
+        synchronized (lock) {
+            appendedSequence = lastSequence;
+            durableSequence = lastSequence;
+            replayed = true;
+        }
+
+        if (groupCommit && flusher == null) {
+            flusher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flushLoop();
+                }
+            }, "ledger-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+
+        Log.debug("Ledger.replay: records={} lastSequence={}", records, lastSequence);
+
+        return records;
+    }
+
+    /**
+     * Check the CRC of every record and that the sequence numbers follow each other, from 1
+     * @return the length of the journal without its torn tail
+     * @throws IOException if a corrupted record is followed by a valid one, or a sequence number is missing
+     */
+    private long findEnd() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_LENGTH * REPLAY_BUFFER_RECORDS);
+        CRC32 crc = new CRC32();
+        long position = 0;
+        long lastSequence = 0;
+
+        channel.position(0);
+        while (channel.read(buffer) > 0) {
+            buffer.flip();
+            while (buffer.remaining() >= RECORD_LENGTH) {
+                int start = buffer.position();
+                if (!isValid(crc, buffer, start)) {
+                    long validPosition = findValidRecord(position + RECORD_LENGTH);
+                    if (validPosition >= 0)
+                        throw new IOException("Ledger: corrupted record at " + position + " bytes, followed by a valid record at " + validPosition + " bytes");
+                    return position;
+                }
+
+                long sequence = buffer.getLong(start);
+                if (sequence != lastSequence + 1)
+                    throw new IOException("Ledger: record " + sequence + " at " + position + " bytes follows record " + lastSequence);
+
+                lastSequence = sequence;
+                buffer.position(start + RECORD_LENGTH);
+                position += RECORD_LENGTH;
+            }
+            buffer.compact();
+        }
+
+        //a partial record at the end
+        return position;
+    }
+
+    /**
+     * @param from the position to look from, at the start of a record
+     * @return the position of the first record with a valid CRC, or -1 if there is none
+     */
+    private long findValidRecord(long from) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_LENGTH * REPLAY_BUFFER_RECORDS);
+        CRC32 crc = new CRC32();
+        long position = from;
+
+        channel.position(from);
+        while (channel.read(buffer) > 0) {
+            buffer.flip();
+            while (buffer.remaining() >= RECORD_LENGTH) {
+                if (isValid(crc, buffer, buffer.position()))
+                    return position;
+                buffer.position(buffer.position() + RECORD_LENGTH);
+                position += RECORD_LENGTH;
+            }
+            buffer.compact();
+        }
+
+        return -1;
+    }
+
+    private static boolean isValid(CRC32 crc, ByteBuffer buffer, int start) {
+        crc.reset();
+        crc.update(buffer.array(), start, CHECKSUMMED_LENGTH);
+        return (int) crc.getValue() == buffer.getInt(start + CHECKSUMMED_LENGTH);
+    }
+
+    public void appendOpen(long accountNo, double balance) throws IOException {
+        append(OPEN, accountNo, 0, balance);
+    }
+
+    public void appendAdd(long accountNo, double sum) throws IOException {
+        append(ADD, accountNo, 0, sum);
+    }
+
+    public void appendTransfer(long fromAccountNo, long toAccountNo, double sum) throws IOException {
+        append(TRANSFER, fromAccountNo, toAccountNo, sum);
+    }
+
+    /**
+     * Append a record and wait until it is on the disk
+     */
+    private void append(int type, long firstAccountNo, long secondAccountNo, double sum) throws IOException {
+        if (!groupCommit) {
+            synchronized (lock) {
+                checkOpen();
+                spare.clear();
+                putRecord(spare, ++appendedSequence, type, firstAccountNo, secondAccountNo, sum);
+                spare.flip();
+                while (spare.hasRemaining()) {
+                    channel.write(spare);
+                }
+                channel.force(false);
+                durableSequence = appendedSequence;
+            }
+            return;
+        }
+
+        long sequence;
+        synchronized (lock) {
+            checkOpen();
+            if (pending.remaining() < RECORD_LENGTH) {
+                ByteBuffer bigger = ByteBuffer.allocate(pending.capacity() * 2);
+                pending.flip();
+                bigger.put(pending);
+                pending = bigger;
+            }
+            sequence = ++appendedSequence;
+            putRecord(pending, sequence, type, firstAccountNo, secondAccountNo, sum);
+            lock.notifyAll();
+
+            //wait for the flusher to force this record (and all the others appended meanwhile) to the disk
+            boolean interrupted = false;
+            while (durableSequence < sequence && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            if (durableSequence < sequence)
+                throw new IOException("Ledger: record " + sequence + " was not written", failure);
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long batchSequence;
+            synchronized (lock) {
+                while (pending.position() == 0 && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.position() == 0)
+                    return;
+
+                batch = pending;
+                batchSequence = appendedSequence;
+                pending = spare;
+                pending.clear();
+                spare = batch;
+            }
+
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+
+            synchronized (lock) {
+                durableSequence = batchSequence;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (!replayed)
+            throw new IOException("Ledger: the journal must be replayed before appending");
+        if (closed)
+            throw new IOException("Ledger: the journal is closed");
+        if (failure != null)
+            throw new IOException("Ledger: a previous write failed", failure);
+    }
+
+    private static void putRecord(ByteBuffer buffer, long sequence, int type, long firstAccountNo, long secondAccountNo, double sum) {
+        int start = buffer.position();
+        buffer.putLong(sequence);
+        buffer.putInt(type);
+        buffer.putLong(firstAccountNo);
+        buffer.putLong(secondAccountNo);
+        buffer.putDouble(sum);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), buffer.arrayOffset() + start, CHECKSUMMED_LENGTH);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    private static void apply(AccountIndex accounts, int type, long firstAccountNo, long secondAccountNo, double sum) {
+        switch (type) {
+            case OPEN:
+                accounts.putIfAbsent(firstAccountNo, sum);
+                break;
+
+            case ADD:
+                accounts.add(firstAccountNo, sum);
+                break;
+
+            case TRANSFER:
+                accounts.transfer(firstAccountNo, secondAccountNo, sum);
+                break;
+
+            default:
+                Log.warn("Ledger.apply: unknown record type={}", type);
+                break;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        channel.close();
+    }
+
+}
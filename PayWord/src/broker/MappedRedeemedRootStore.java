@@ -0,0 +1,640 @@
+package broker;
+
+import backend.Payword;
+import utils.Constants;
+import utils.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * The redeemed roots kept in a memory mapped file, so they survive a restart of the Broker
+ * The file is a hash table:
+ *  - a header of HEADER_LENGTH bytes: magic, version, capacity, number of regions, number of entries
+ *  - the slots, with the same layout as RedeemedRootIndex (root, commit digest, last payword, last index, expire date)
+ * The slots are split in regions; a root always stays in its home region (linear probing inside it) and every region
+ * has its own lock. Opening the file only maps it: nothing is read on the heap, the pages are loaded when touched.
+ * The expired entries met by a new root are deleted, moving the next entries of the run back, so the runs stay short.
+ * When the table is more than MAX_LOAD_FACTOR full, or a region is full, the live entries are copied to a new file
+ * twice as big, which then replaces the old one
+ * Every change is forced to the disk before it is reported; changes made in the same time share one force
+ * Nothing orders the writes to the fields of a slot on the disk, so a crash before the force can leave an entry torn.
+ * The redeem of such an entry was never answered nor paid, and a torn entry can only refuse the next redeems of its chain
+ * (a wrong checkpoint), never pay the same paywords twice
+ */
+public class MappedRedeemedRootStore implements RedeemedRootStore, Closeable {
+
+    private static final long MAGIC = 0x5041595752444d31L; //"PAYWRDM1"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 4096;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 12;
+    private static final int REGIONS_OFFSET = 20;
+    private static final int SIZE_OFFSET = 24;
+
+    private static final int ROOT_OFFSET = 0;
+    private static final int DIGEST_OFFSET = ROOT_OFFSET + Constants.HASH_LENGTH;
+    private static final int PAYWORD_OFFSET = DIGEST_OFFSET + Constants.HASH_LENGTH;
+    private static final int INDEX_OFFSET = PAYWORD_OFFSET + Constants.HASH_LENGTH;
+    private static final int EXPIRES_OFFSET = INDEX_OFFSET + Constants.INT_NO_OF_BYTES;
+    private static final int SLOT_LENGTH = EXPIRES_OFFSET + Constants.LONG_NO_OF_BYTES;
+
+    private static final int MAX_REGIONS = 1 << 16;
+    private static final int MIN_REGION_SLOTS = 64;
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+    //a region must fit in a chunk
+    private static final long MAX_CAPACITY = MAX_REGIONS * (MAX_CHUNK_BYTES / SLOT_LENGTH);
+
+    private static final double MAX_LOAD_FACTOR = 0.75;
+    private static final int MAX_PUT_ATTEMPTS = 3;
+
+    private final String path;
+    //shared by the operations on the table; growing the table takes it alone
+    private final ReentrantReadWriteLock resizeLock = new ReentrantReadWriteLock();
+    private volatile Table table;
+
+    /**
+     * Open the file of redeemed roots, or create it with the given number of slots
+     * @param path the path of the file
+     * @param capacity the number of slots of a new file (ignored for an existing file); should be about twice the
+     *                 number of chains redeemed before their certificates expire, the file grows when it is too small
+     * @throws IOException if the file can't be opened or is not a valid file of redeemed roots
+     */
+    public MappedRedeemedRootStore(String path, long capacity) throws IOException {
+        this.path = path;
+        this.table = Table.open(path, capacity);
+    }
+
+    @Override
+    public RedeemState get(byte[] root) {
+        resizeLock.readLock().lock();
+        try {
+            return table.get(root);
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int putIfAbsent(byte[] root, byte[] commitDigest, int lastIndex, byte[] lastPayword, long expiresAt) {
+        for (int attempt = 1; ; ++attempt) {
+            Table current;
+            int result;
+            resizeLock.readLock().lock();
+            try {
+                current = table;
+                result = current.putIfAbsent(root, commitDigest, lastIndex, lastPayword, expiresAt);
+            } finally {
+                resizeLock.readLock().unlock();
+            }
+
+            //if the table can't grow now, the next roots still fit until a region is full
+            if (result == ADDED && current.isOverloaded())
+                grow(current);
+            if (result != FULL)
+                return result;
+
+            if (attempt == MAX_PUT_ATTEMPTS || !grow(current)) {
+                Log.error("MappedRedeemedRootStore.putIfAbsent: no room for the root in {}, capacity={}! => refuse the root", path, current.capacity);
+                return FULL;
+            }
+        }
+    }
+
+    @Override
+    public boolean advance(byte[] root, int expectedIndex, int lastIndex, byte[] lastPayword) {
+        resizeLock.readLock().lock();
+        try {
+            return table.advance(root, expectedIndex, lastIndex, lastPayword);
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int purgeExpired(long now) {
+        resizeLock.readLock().lock();
+        try {
+            return table.purgeExpired(now);
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of entries, the expired ones not deleted yet included
+     */
+    @Override
+    public long size() {
+        return table.size.get();
+    }
+
+    public long getCapacity() {
+        return table.capacity;
+    }
+
+    /**
+     * Delete the expired entries, and if the table is still too full copy the live entries to a new file with twice
+     * the slots, then put it in place of the old one
+     * A crash before the new file replaces the old one leaves the old file as it was
+     * @param full the table that needs room
+     * @return true if room was made (here or in another thread), false otherwise
+     */
+    private boolean grow(Table full) {
+        resizeLock.writeLock().lock();
+        try {
+            if (table != full)
+                return true;
+
+            if (full.purgeExpired(System.currentTimeMillis()) != 0 && !full.isOverloaded())
+                return true;
+
+            long newCapacity = full.capacity * 2;
+            if (newCapacity > MAX_CAPACITY) {
+                Log.error("MappedRedeemedRootStore.grow: {} can't have more than {} slots", path, MAX_CAPACITY);
+                return false;
+            }
+
+            long start = System.nanoTime();
+            Path growPath = Paths.get(path + ".grow");
+            Files.deleteIfExists(growPath);
+
+            Table grown = Table.open(growPath.toString(), newCapacity);
+            try {
+                full.copyLiveEntries(grown, System.currentTimeMillis());
+                grown.forceAll();
+                Files.move(growPath, Paths.get(path), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                grown.close();
+                Files.deleteIfExists(growPath);
+                throw e;
+            }
+
+            full.close();
+            table = grown;
+
+            Log.info("MappedRedeemedRootStore.grow: path={} capacity={} entries={} millis={}", path, grown.capacity, grown.size.get(),
+                    (System.nanoTime() - start) / 1000000);
+            return true;
+        } catch (IOException e) {
+            Log.error("MappedRedeemedRootStore.grow: can't grow " + path, e);
+            return false;
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        resizeLock.writeLock().lock();
+        try {
+            table.close();
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * One file of redeemed roots, with a fixed number of slots
+     */
+    private static class Table {
+
+        private final FileChannel channel;
+        private final MappedByteBuffer header;
+        private final MappedByteBuffer[] chunks;
+        private final AtomicIntegerArray dirtyChunks;
+        private final Object[] regionLocks;
+        private final long capacity;
+        private final int noOfRegions;
+        private final int regionSlots;
+        private final int regionsPerChunk;
+        private final AtomicLong size;
+
+        private final AtomicLong writeGeneration = new AtomicLong();
+        private final Object forceLock = new Object();
+        private long forcedGeneration;
+        private long forcedSize;
+
+        /**
+         * Open the file, or create it with the given number of slots if it is empty
+         * The header of an existing file is checked against the length of the file before anything is mapped
+         */
+        static Table open(String path, long capacity) throws IOException {
+            FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                long fileLength = channel.size();
+                if (fileLength != 0 && fileLength < HEADER_LENGTH)
+                    throw new IOException("MappedRedeemedRootStore: " + path + " is not a file of redeemed roots");
+
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+                int noOfRegions;
+                long size;
+
+                if (fileLength == 0) {
+                    if (capacity < 1 || capacity > MAX_CAPACITY)
+                        throw new IOException("MappedRedeemedRootStore: capacity " + capacity + " of " + path + " is not between 1 and " + MAX_CAPACITY);
+
+                    //new file: round the capacity up to a whole number of regions
+                    int regions = 1;
+                    while (regions < MAX_REGIONS && (long) regions * 2 * MIN_REGION_SLOTS <= capacity) {
+                        regions *= 2;
+                    }
+                    long slotsPerRegion = Math.max(MIN_REGION_SLOTS, (capacity + regions - 1) / regions);
+                    noOfRegions = regions;
+                    capacity = slotsPerRegion * regions;
+                    size = 0;
+
+                    header.putLong(MAGIC_OFFSET, MAGIC);
+                    header.putInt(VERSION_OFFSET, VERSION);
+                    header.putLong(CAPACITY_OFFSET, capacity);
+                    header.putInt(REGIONS_OFFSET, noOfRegions);
+                    header.putLong(SIZE_OFFSET, size);
+                    header.force();
+                } else {
+                    if (header.getLong(MAGIC_OFFSET) != MAGIC)
+                        throw new IOException("MappedRedeemedRootStore: " + path + " is not a file of redeemed roots");
+
+                    int version = header.getInt(VERSION_OFFSET);
+                    if (version != VERSION)
+                        throw new IOException("MappedRedeemedRootStore: unknown version " + version + " of " + path);
+
+                    capacity = header.getLong(CAPACITY_OFFSET);
+                    noOfRegions = header.getInt(REGIONS_OFFSET);
+                    size = header.getLong(SIZE_OFFSET);
+
+                    if (noOfRegions < 1 || noOfRegions > MAX_REGIONS || capacity < noOfRegions || capacity > MAX_CAPACITY
+                            || capacity % noOfRegions != 0 || capacity / noOfRegions * SLOT_LENGTH > MAX_CHUNK_BYTES
+                            || size < 0 || size > capacity)
+                        throw new IOException("MappedRedeemedRootStore: bad header of " + path + ": capacity=" + capacity
+                                + " regions=" + noOfRegions + " size=" + size);
+
+                    if (fileLength < HEADER_LENGTH + capacity * SLOT_LENGTH)
+                        throw new IOException("MappedRedeemedRootStore: " + path + " is truncated: " + fileLength + " bytes for " + capacity + " slots");
+                }
+
+                Table table = new Table(channel, header, capacity, noOfRegions, size);
+
+                Log.debug("MappedRedeemedRootStore: path={} capacity={} regions={} chunks={} size={}", path, capacity, noOfRegions,
+                        table.chunks.length, table.size.get());
+                return table;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private Table(FileChannel channel, MappedByteBuffer header, long capacity, int noOfRegions, long size) throws IOException {
+            this.channel = channel;
+            this.header = header;
+            this.capacity = capacity;
+            this.noOfRegions = noOfRegions;
+            this.regionSlots = (int) (capacity / noOfRegions);
+            this.size = new AtomicLong(size);
+            this.forcedSize = size;
+
+            long regionBytes = (long) regionSlots * SLOT_LENGTH;
+            this.regionsPerChunk = (int) Math.max(1, Math.min(noOfRegions, MAX_CHUNK_BYTES / regionBytes));
+
+            int noOfChunks = (noOfRegions + regionsPerChunk - 1) / regionsPerChunk;
+            this.chunks = new MappedByteBuffer[noOfChunks];
+            for (int i = 0; i < noOfChunks; ++i) {
+                int regionsInChunk = Math.min(regionsPerChunk, noOfRegions - i * regionsPerChunk);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_LENGTH + i * regionsPerChunk * regionBytes, regionsInChunk * regionBytes);
+            }
+            this.dirtyChunks = new AtomicIntegerArray(noOfChunks);
+
+            this.regionLocks = new Object[noOfRegions];
+            for (int i = 0; i < noOfRegions; ++i) {
+                regionLocks[i] = new Object();
+            }
+        }
+
+        RedeemState get(byte[] root) {
+            int region = regionOf(getInt(root, 0));
+            MappedByteBuffer chunk = chunkOf(region);
+            synchronized (regionLocks[region]) {
+                int offset = find(chunk, region, root, System.currentTimeMillis());
+                if (offset < 0)
+                    return null;
+
+                Payword lastPayword = new Payword();
+                lastPayword.setBytes(getBytes(chunk, offset + PAYWORD_OFFSET));
+
+                return new RedeemState(getBytes(chunk, offset + DIGEST_OFFSET), chunk.getInt(offset + INDEX_OFFSET), lastPayword);
+            }
+        }
+
+        int putIfAbsent(byte[] root, byte[] commitDigest, int lastIndex, byte[] lastPayword, long expiresAt) {
+            int region = regionOf(getInt(root, 0));
+            MappedByteBuffer chunk = chunkOf(region);
+            long now = System.currentTimeMillis();
+            synchronized (regionLocks[region]) {
+                int start = homeSlot(getInt(root, 4));
+
+                //the expired entries of the run of the root are deleted first, so a miss stops at the end of the live ones
+                if (purgeRun(chunk, region, start, now) != 0)
+                    dirtyChunks.set(region / regionsPerChunk, 1);
+
+                if (find(chunk, region, root, now) >= 0)
+                    return ALREADY_REDEEMED;
+
+                //the first free or expired slot from the home position
+                int offset = -1;
+                for (int i = 0; i < regionSlots; ++i) {
+                    int candidate = slotOffset(region, (start + i) % regionSlots);
+                    long slotExpiresAt = chunk.getLong(candidate + EXPIRES_OFFSET);
+                    if (slotExpiresAt == 0 || slotExpiresAt < now) {
+                        offset = candidate;
+                        break;
+                    }
+                }
+                if (offset < 0)
+                    return FULL;
+
+                if (chunk.getLong(offset + EXPIRES_OFFSET) == 0)
+                    size.incrementAndGet();
+                putBytes(chunk, offset + ROOT_OFFSET, root);
+                putBytes(chunk, offset + DIGEST_OFFSET, commitDigest);
+                putBytes(chunk, offset + PAYWORD_OFFSET, lastPayword);
+                chunk.putInt(offset + INDEX_OFFSET, lastIndex);
+                //0 marks a free slot; written last, so the other threads see the slot used only once it is complete
+                //(they read it under the lock of the region); on the disk the fields can be torn, see the class comment
+                chunk.putLong(offset + EXPIRES_OFFSET, Math.max(expiresAt, 1));
+            }
+
+            forceChanges(region);
+            return ADDED;
+        }
+
+        boolean advance(byte[] root, int expectedIndex, int lastIndex, byte[] lastPayword) {
+            int region = regionOf(getInt(root, 0));
+            MappedByteBuffer chunk = chunkOf(region);
+            synchronized (regionLocks[region]) {
+                int offset = find(chunk, region, root, System.currentTimeMillis());
+                if (offset < 0 || chunk.getInt(offset + INDEX_OFFSET) != expectedIndex)
+                    return false;
+
+                putBytes(chunk, offset + PAYWORD_OFFSET, lastPayword);
+                chunk.putInt(offset + INDEX_OFFSET, lastIndex);
+            }
+
+            forceChanges(region);
+            return true;
+        }
+
+        /**
+         * Delete the expired entries of every region
+         * @return the number of entries deleted
+         */
+        int purgeExpired(long now) {
+            int purged = 0;
+            for (int region = 0; region < noOfRegions; ++region) {
+                MappedByteBuffer chunk = chunkOf(region);
+                synchronized (regionLocks[region]) {
+                    int regionPurged = 0;
+                    for (int slot = 0; slot < regionSlots; ++slot) {
+                        //the slot gets the next entry of the run, which may have expired too
+                        while (isExpired(chunk, slotOffset(region, slot), now)) {
+                            deleteSlot(chunk, region, slot);
+                            ++regionPurged;
+                        }
+                    }
+                    if (regionPurged != 0) {
+                        dirtyChunks.set(region / regionsPerChunk, 1);
+                        purged += regionPurged;
+                    }
+                }
+            }
+
+            if (purged != 0)
+                forceAll();
+            return purged;
+        }
+
+        boolean isOverloaded() {
+            return size.get() > capacity * MAX_LOAD_FACTOR;
+        }
+
+        /**
+         * Find the slot of a root in its region; expired slots are skipped but don't stop the search,
+         * as they may have been occupied when a root placed after them was inserted
+         * @return the offset of the slot in the chunk, or -1 if the root is not there (or its entry expired)
+         */
+        private int find(MappedByteBuffer chunk, int region, byte[] root, long now) {
+            int start = homeSlot(getInt(root, 4));
+            for (int i = 0; i < regionSlots; ++i) {
+                int offset = slotOffset(region, (start + i) % regionSlots);
+                long expiresAt = chunk.getLong(offset + EXPIRES_OFFSET);
+                if (expiresAt == 0)
+                    return -1;
+                if (expiresAt >= now && rootEquals(chunk, offset + ROOT_OFFSET, root))
+                    return offset;
+            }
+            return -1;
+        }
+
+        /**
+         * Delete the expired entries of the run that goes through a slot, from that slot to the first free one
+         * @return the number of entries deleted
+         */
+        private int purgeRun(MappedByteBuffer chunk, int region, int start, long now) {
+            int purged = 0;
+            int slot = start;
+            for (int i = 0; i < regionSlots; ) {
+                int offset = slotOffset(region, slot);
+                if (chunk.getLong(offset + EXPIRES_OFFSET) == 0)
+                    break;
+
+                if (isExpired(chunk, offset, now)) {
+                    deleteSlot(chunk, region, slot);
+                    ++purged;
+                } else {
+                    slot = (slot + 1) % regionSlots;
+                    ++i;
+                }
+            }
+            return purged;
+        }
+
+        /**
+         * Free a slot and move back the next entries of its run that can't be found anymore without it
+         * An entry is copied before its old slot is reused or freed, so a crash in the middle leaves every root
+         * findable, at worst twice
+         */
+        private void deleteSlot(MappedByteBuffer chunk, int region, int slot) {
+            int hole = slot;
+            int next = slot;
+            for (int i = 1; i < regionSlots; ++i) {
+                next = (next + 1) % regionSlots;
+                int nextOffset = slotOffset(region, next);
+                if (chunk.getLong(nextOffset + EXPIRES_OFFSET) == 0)
+                    break;
+
+                //the entry stays if its home slot is after the hole, up to where it is
+                int home = homeSlot(chunk.getInt(nextOffset + ROOT_OFFSET + 4));
+                boolean reachable = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+                if (!reachable) {
+                    copySlot(chunk, nextOffset, chunk, slotOffset(region, hole));
+                    hole = next;
+                }
+            }
+
+            chunk.putLong(slotOffset(region, hole) + EXPIRES_OFFSET, 0);
+            size.decrementAndGet();
+        }
+
+        /**
+         * Insert the live entries of this table into an empty table
+         */
+        void copyLiveEntries(Table target, long now) throws IOException {
+            for (int region = 0; region < noOfRegions; ++region) {
+                MappedByteBuffer chunk = chunkOf(region);
+                for (int slot = 0; slot < regionSlots; ++slot) {
+                    int offset = slotOffset(region, slot);
+                    if (chunk.getLong(offset + EXPIRES_OFFSET) != 0 && !isExpired(chunk, offset, now))
+                        target.insertCopy(chunk, offset);
+                }
+            }
+
+            for (int i = 0; i < target.chunks.length; ++i) {
+                target.dirtyChunks.set(i, 1);
+            }
+        }
+
+        private void insertCopy(MappedByteBuffer sourceChunk, int sourceOffset) throws IOException {
+            int region = regionOf(sourceChunk.getInt(sourceOffset + ROOT_OFFSET));
+            int start = homeSlot(sourceChunk.getInt(sourceOffset + ROOT_OFFSET + 4));
+            MappedByteBuffer chunk = chunkOf(region);
+            for (int i = 0; i < regionSlots; ++i) {
+                int offset = slotOffset(region, (start + i) % regionSlots);
+                if (chunk.getLong(offset + EXPIRES_OFFSET) == 0) {
+                    copySlot(sourceChunk, sourceOffset, chunk, offset);
+                    size.incrementAndGet();
+                    return;
+                }
+            }
+
+            throw new IOException("MappedRedeemedRootStore: region " + region + " is full while growing");
+        }
+
+        /**
+         * Force the changes to the disk; a thread that finds its change already forced by another one returns at once
+         */
+        private void forceChanges(int region) {
+            dirtyChunks.set(region / regionsPerChunk, 1);
+            long generation = writeGeneration.incrementAndGet();
+
+            synchronized (forceLock) {
+                if (forcedGeneration >= generation)
+                    return;
+
+                long target = writeGeneration.get();
+                forceDirtyChunks();
+                forcedGeneration = target;
+            }
+        }
+
+        private void forceAll() {
+            synchronized (forceLock) {
+                long target = writeGeneration.get();
+                forceDirtyChunks();
+                forcedGeneration = target;
+            }
+        }
+
+        /**
+         * Force the dirty chunks, then the number of entries if it changed since the last force
+         */
+        private void forceDirtyChunks() {
+            for (int i = 0; i < chunks.length; ++i) {
+                if (dirtyChunks.getAndSet(i, 0) != 0)
+                    chunks[i].force();
+            }
+
+            long currentSize = size.get();
+            if (currentSize != forcedSize) {
+                header.putLong(SIZE_OFFSET, currentSize);
+                header.force();
+                forcedSize = currentSize;
+            }
+        }
+
+        private int regionOf(int rootWord) {
+            //the roots are SHA-1 values, so their bytes are already uniformly spread
+            return (int) ((rootWord & 0xffffffffL) % noOfRegions);
+        }
+
+        private int homeSlot(int rootWord) {
+            return (int) ((rootWord & 0xffffffffL) % regionSlots);
+        }
+
+        private MappedByteBuffer chunkOf(int region) {
+            return chunks[region / regionsPerChunk];
+        }
+
+        private int slotOffset(int region, int slot) {
+            return ((region % regionsPerChunk) * regionSlots + slot) * SLOT_LENGTH;
+        }
+
+        void close() throws IOException {
+            forceAll();
+            channel.close();
+        }
+    }
+
+    private static boolean isExpired(MappedByteBuffer chunk, int offset, long now) {
+        long expiresAt = chunk.getLong(offset + EXPIRES_OFFSET);
+        return expiresAt != 0 && expiresAt < now;
+    }
+
+    /**
+     * Copy a slot, its expire date last; the copy is forced before the file is used, see grow
+     */
+    private static void copySlot(MappedByteBuffer source, int sourceOffset, MappedByteBuffer target, int targetOffset) {
+        for (int i = 0; i < EXPIRES_OFFSET; ++i) {
+            target.put(targetOffset + i, source.get(sourceOffset + i));
+        }
+        target.putLong(targetOffset + EXPIRES_OFFSET, source.getLong(sourceOffset + EXPIRES_OFFSET));
+    }
+
+    private static boolean rootEquals(MappedByteBuffer chunk, int offset, byte[] root) {
+        for (int i = 0; i < Constants.HASH_LENGTH; ++i) {
+            if (chunk.get(offset + i) != root[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] getBytes(MappedByteBuffer chunk, int offset) {
+        byte[] bytes = new byte[Constants.HASH_LENGTH];
+        for (int i = 0; i < Constants.HASH_LENGTH; ++i) {
+            bytes[i] = chunk.get(offset + i);
+        }
+        return bytes;
+    }
+
+    private static void putBytes(MappedByteBuffer chunk, int offset, byte[] bytes) {
+        for (int i = 0; i < Constants.HASH_LENGTH; ++i) {
+            chunk.put(offset + i, bytes[i]);
+        }
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+}
@@ -0,0 +1,62 @@
+package broker;
+
+import backend.RedeemMessageView;
+import user.UserInfo;
+import vendor.VendorInfo;
+
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * A redeem message on its way through the RedeemPipeline, with what the stages found out about it so far
+ * Every job is handled by one stage at a time, so the fields need no synchronization: the queues between the stages
+ * publish them to the next stage, and the latch publishes the result
+ */
+class RedeemJob {
+
+    final byte[] message;
+    private final CountDownLatch done;
+    private boolean result;
+
+    //set by the stages
+    long enqueueTime;
+
+    //decode
+    RedeemMessageView view;
+    byte[] commitDigest;
+    byte[] c0;
+    byte[] cl;
+    int l;
+    long certificateExpireDate;
+    UserInfo userInfo;
+    VendorInfo vendorInfo;
+
+    //signature verify
+    RedeemState redeemState;
+
+    //chain verify
+    int checkpointIndex;
+    int sumToPay;
+
+    /**
+     * @param message the redeem message
+     * @param done counted down when the job is complete (can be shared by the jobs of a batch)
+     */
+    RedeemJob(byte[] message, CountDownLatch done) {
+        this.message = message;
+        this.done = done;
+    }
+
+    void complete(boolean result) {
+        this.result = result;
+        done.countDown();
+    }
+
+    /**
+     * @return true if the vendor was paid, false otherwise; only valid once the job is complete
+     */
+    boolean getResult() {
+        return result;
+    }
+
+}
@@ -0,0 +1,353 @@
+package broker;
+
+import utils.DaemonThreadFactory;
+import utils.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The redeem of the Broker split in stages, each one with its own workers and a bounded queue in front of it:
+ *  decode -> signature verify -> chain verify -> reserve -> settle
+ * The RSA and SHA-1 stages have a worker per core, so many redeems keep all the cores busy. The reservation and the
+ * settlement are split in partitions with a single worker, chosen by the account of the user, so the redeems of an
+ * account keep their order from the reservation to the transfer
+ * When a queue is full the previous stage waits, so a burst of redeems can't use all the memory
+ */
+public class RedeemPipeline {
+
+    /**
+     * A step of the redeem: its workers take the jobs from its queue, handle them and pass them to the next stage
+     * The counters can be read at any time to watch the pipeline
+     */
+    public static abstract class Stage implements Runnable {
+
+        private final String name;
+        private final BlockingQueue<RedeemJob> queue;
+        private final int queueLength;
+        private RedeemPipeline pipeline;
+
+        private final AtomicLong processedCount = new AtomicLong();
+        private final AtomicLong rejectedCount = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final AtomicLong serviceNanos = new AtomicLong();
+        private final AtomicLong maxServiceNanos = new AtomicLong();
+
+        Stage(String name, int queueLength) {
+            this.name = name;
+            this.queue = new ArrayBlockingQueue<>(queueLength);
+            this.queueLength = queueLength;
+        }
+
+        /**
+         * Handle a job
+         * @param job the job
+         * @return true if the job goes on to the next stage, false if the redeem is refused
+         */
+        abstract boolean process(RedeemJob job);
+
+        /**
+         * Pass a job that was handled to the next stage
+         * @param job the job
+         */
+        abstract void next(RedeemJob job) throws InterruptedException;
+
+        void put(RedeemJob job) throws InterruptedException {
+            job.enqueueTime = System.nanoTime();
+            queue.put(job);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                RedeemJob job;
+                try {
+                    job = queue.take();
+                } catch (InterruptedException e) {
+                    //the worker is stopped
+                    return;
+                }
+
+                try {
+                    handle(job);
+                } catch (InterruptedException e) {
+                    //the job was not passed on: refuse it, so its redeem doesn't wait forever, and stop the worker
+                    pipeline.complete(job, false);
+                    return;
+                } catch (Throwable e) {
+                    //a malformed message (or a failed worker) only fails its own redeem; the job was not passed on
+                    Log.error("RedeemPipeline." + name + ": the redeem failed", e);
+                    rejectedCount.incrementAndGet();
+                    pipeline.complete(job, false);
+                }
+            }
+        }
+
+        private void handle(RedeemJob job) throws InterruptedException {
+            long start = System.nanoTime();
+            waitNanos.addAndGet(start - job.enqueueTime);
+
+            boolean result;
+            try {
+                result = process(job);
+            } finally {
+                long service = System.nanoTime() - start;
+                serviceNanos.addAndGet(service);
+                long max;
+                while (service > (max = maxServiceNanos.get()) && !maxServiceNanos.compareAndSet(max, service)) {
+                    //retry until the max is updated or a longer one is found
+                }
+                processedCount.incrementAndGet();
+            }
+
+            if (result) {
+                next(job);
+            } else {
+                rejectedCount.incrementAndGet();
+                pipeline.complete(job, false);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getQueueDepth() {
+            return queue.size();
+        }
+
+        public int getQueueLength() {
+            return queueLength;
+        }
+
+        public long getProcessedCount() {
+            return processedCount.get();
+        }
+
+        public long getRejectedCount() {
+            return rejectedCount.get();
+        }
+
+        /**
+         * @return the average time in microseconds a job waited in the queue of the stage
+         */
+        public double getAverageWaitMicros() {
+            long count = processedCount.get();
+            return count == 0 ? 0 : waitNanos.get() / 1e3 / count;
+        }
+
+        /**
+         * @return the average time in microseconds the stage took to handle a job
+         */
+        public double getAverageServiceMicros() {
+            long count = processedCount.get();
+            return count == 0 ? 0 : serviceNanos.get() / 1e3 / count;
+        }
+
+        public double getMaxServiceMicros() {
+            return maxServiceNanos.get() / 1e3;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": queue=" + getQueueDepth() + "/" + queueLength
+                    + " processed=" + getProcessedCount() + " rejected=" + getRejectedCount()
+                    + " avgWait=" + String.format("%.1fus", getAverageWaitMicros())
+                    + " avgService=" + String.format("%.1fus", getAverageServiceMicros())
+                    + " maxService=" + String.format("%.1fus", getMaxServiceMicros());
+        }
+    }
+
+
+    private final Broker broker;
+    private final Stage decode;
+    private final Stage signatureVerify;
+    private final Stage chainVerify;
+    private final Stage[] reserve;
+    private final Stage[] settle;
+    private final List<Stage> stages;
+
+    /**
+     * Create the pipeline and start its workers
+     * @param broker the Broker that does the work of the stages
+     * @param noOfThreads the number of workers of the RSA and SHA-1 stages, and of reservation and settlement partitions
+     * @param queueLength the number of jobs that can wait in front of each stage
+     */
+    RedeemPipeline(Broker broker, int noOfThreads, int queueLength) {
+        this.broker = broker;
+
+        this.settle = new Stage[noOfThreads];
+        for (int partition = 0; partition < noOfThreads; ++partition) {
+            settle[partition] = new Stage("settle-" + partition, queueLength) {
+                @Override
+                boolean process(RedeemJob job) {
+                    return RedeemPipeline.this.broker.settleRedeem(job);
+                }
+
+                @Override
+                void next(RedeemJob job) {
+                    complete(job, true);
+                }
+            };
+        }
+
+        this.reserve = new Stage[noOfThreads];
+        for (int partition = 0; partition < noOfThreads; ++partition) {
+            final Stage settlePartition = settle[partition];
+            reserve[partition] = new Stage("reserve-" + partition, queueLength) {
+                @Override
+                boolean process(RedeemJob job) {
+                    return RedeemPipeline.this.broker.reserveRedeem(job);
+                }
+
+                @Override
+                void next(RedeemJob job) throws InterruptedException {
+                    //the settlement partition of the same account
+                    settlePartition.put(job);
+                }
+            };
+        }
+
+        this.chainVerify = new Stage("chain-verify", queueLength) {
+            @Override
+            boolean process(RedeemJob job) {
+                return RedeemPipeline.this.broker.verifyRedeemChain(job);
+            }
+
+            @Override
+            void next(RedeemJob job) throws InterruptedException {
+                //the same account always goes to the same partition
+                reserve[getPartition(job)].put(job);
+            }
+        };
+
+        this.signatureVerify = new Stage("signature-verify", queueLength) {
+            @Override
+            boolean process(RedeemJob job) {
+                return RedeemPipeline.this.broker.verifyRedeemSignature(job);
+            }
+
+            @Override
+            void next(RedeemJob job) throws InterruptedException {
+                chainVerify.put(job);
+            }
+        };
+
+        this.decode = new Stage("decode", queueLength) {
+            @Override
+            boolean process(RedeemJob job) {
+                return RedeemPipeline.this.broker.decodeRedeem(job);
+            }
+
+            @Override
+            void next(RedeemJob job) throws InterruptedException {
+                signatureVerify.put(job);
+            }
+        };
+
+        List<Stage> stages = new ArrayList<>();
+        stages.add(decode);
+        stages.add(signatureVerify);
+        stages.add(chainVerify);
+        Collections.addAll(stages, reserve);
+        Collections.addAll(stages, settle);
+        this.stages = Collections.unmodifiableList(stages);
+
+        //a single worker per partition keeps the order of the redeems of an account
+        start(decode, noOfThreads);
+        start(signatureVerify, noOfThreads);
+        start(chainVerify, noOfThreads);
+        for (Stage partition : reserve) {
+            start(partition, 1);
+        }
+        for (Stage partition : settle) {
+            start(partition, 1);
+        }
+    }
+
+    private int getPartition(RedeemJob job) {
+        long accountNumber = job.userInfo.getAccountNumber();
+        return (Long.hashCode(accountNumber) & Integer.MAX_VALUE) % reserve.length;
+    }
+
+    private void start(Stage stage, int noOfThreads) {
+        stage.pipeline = this;
+        ThreadFactory threadFactory = new DaemonThreadFactory("redeem-" + stage.getName());
+        for (int i = 0; i < noOfThreads; ++i) {
+            threadFactory.newThread(stage).start();
+        }
+    }
+
+    private void complete(RedeemJob job, boolean result) {
+        if (result)
+            Log.debug("Broker.redeem: redeem OK");
+        else
+            Log.warn("Broker.redeem: redeem NOK");
+
+        job.complete(result);
+    }
+
+    /**
+     * Redeem a message and wait for the result
+     * @param message the redeem message
+     * @return true if the vendor was paid, false otherwise
+     */
+    public boolean redeem(byte[] message) {
+        return redeemAll(new byte[][]{message})[0];
+    }
+
+    /**
+     * Redeem many messages and wait for all the results
+     * @param messages the redeem messages
+     * @return the result of every message, in the same order
+     */
+    public boolean[] redeemAll(byte[][] messages) {
+        CountDownLatch done = new CountDownLatch(messages.length);
+        RedeemJob[] jobs = new RedeemJob[messages.length];
+        boolean[] results = new boolean[messages.length];
+
+        try {
+            for (int messageNo = 0; messageNo < messages.length; ++messageNo) {
+                jobs[messageNo] = new RedeemJob(messages[messageNo], done);
+                decode.put(jobs[messageNo]);
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            //the redeems already submitted go on; report them all as refused, a vendor retrying one that was paid is refused anyway
+            Log.error("RedeemPipeline.redeemAll: interrupted while waiting for the redeems", e);
+            Thread.currentThread().interrupt();
+            return results;
+        }
+
+        for (int messageNo = 0; messageNo < messages.length; ++messageNo) {
+            results[messageNo] = jobs[messageNo].getResult();
+        }
+
+        return results;
+    }
+
+    /**
+     * Get the stages, in the order the jobs go through them, to watch the queues and the latencies
+     * @return the stages
+     */
+    public List<Stage> getStages() {
+        return stages;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder("RedeemPipeline:");
+        for (Stage stage : stages) {
+            stringBuilder.append("\n  ").append(stage);
+        }
+        return stringBuilder.toString();
+    }
+
+}
@@ -0,0 +1,35 @@
+package broker;
+
+import backend.Payword;
+
+
+/**
+ * The checkpoint kept by the Broker for a hash chain that was already redeemed at least once
+ * It holds the digest of the commit that was verified and the last payword accepted (and its index),
+ * so a later redeem only has to hash from the new c(l) down to the checkpoint
+ */
+public class RedeemState {
+
+    private final byte[] commitDigest;
+    private final int lastIndex;
+    private final Payword lastPayword;
+
+    public RedeemState(byte[] commitDigest, int lastIndex, Payword lastPayword) {
+        this.commitDigest = commitDigest;
+        this.lastIndex = lastIndex;
+        this.lastPayword = lastPayword;
+    }
+
+    public byte[] getCommitDigest() {
+        return commitDigest;
+    }
+
+    public int getLastIndex() {
+        return lastIndex;
+    }
+
+    public Payword getLastPayword() {
+        return lastPayword;
+    }
+
+}
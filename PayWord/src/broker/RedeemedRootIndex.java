@@ -0,0 +1,291 @@
+package broker;
+
+import backend.Payword;
+import utils.Constants;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * The set of hash chain roots (c0) already redeemed, with the redeem checkpoint of each chain
+ * The entries are stored in flat byte arrays, without an object per entry. Each slot has:
+ *  - 20 bytes for the root c0
+ *  - 20 bytes for the digest of the verified commit
+ *  - 20 bytes for the last payword redeemed
+ *  - 4 bytes for the index of the last payword redeemed
+ *  - 8 bytes for the moment the entry expires (the expire date of the user certificate); 0 for a free slot
+ * The roots are spread over segments, each one an open addressing table with its own lock and its own Bloom filter.
+ * The Bloom filter answers the usual "never redeemed" case without taking the lock.
+ * An entry is dropped after the user certificate expires, as the Broker refuses the commits of an expired certificate
+ */
+public class RedeemedRootIndex implements RedeemedRootStore {
+
+    private static final int NO_OF_SEGMENTS = 64;
+    private static final int SEGMENT_INITIAL_CAPACITY = 64;
+
+    private static final int ROOT_OFFSET = 0;
+    private static final int DIGEST_OFFSET = ROOT_OFFSET + Constants.HASH_LENGTH;
+    private static final int PAYWORD_OFFSET = DIGEST_OFFSET + Constants.HASH_LENGTH;
+    private static final int INDEX_OFFSET = PAYWORD_OFFSET + Constants.HASH_LENGTH;
+    private static final int EXPIRES_OFFSET = INDEX_OFFSET + Constants.INT_NO_OF_BYTES;
+    private static final int SLOT_LENGTH = EXPIRES_OFFSET + Constants.LONG_NO_OF_BYTES;
+
+    private static final int BLOOM_BITS_PER_SLOT = 8;
+    private static final int BLOOM_HASHES = 4;
+
+    private final Segment[] segments;
+
+    public RedeemedRootIndex() {
+        this.segments = new Segment[NO_OF_SEGMENTS];
+        for (int i = 0; i < NO_OF_SEGMENTS; ++i) {
+            this.segments[i] = new Segment(SEGMENT_INITIAL_CAPACITY);
+        }
+    }
+
+    @Override
+    public RedeemState get(byte[] root) {
+        Segment segment = segmentFor(root);
+        if (!segment.bloom.mightContain(root))
+            return null;
+
+        synchronized (segment) {
+            int slot = segment.find(root);
+            if (slot < 0)
+                return null;
+
+            byte[] slots = segment.slots;
+            int offset = slot * SLOT_LENGTH;
+            Payword lastPayword = new Payword();
+            lastPayword.setBytes(Arrays.copyOfRange(slots, offset + PAYWORD_OFFSET, offset + PAYWORD_OFFSET + Constants.HASH_LENGTH));
+
+            return new RedeemState(Arrays.copyOfRange(slots, offset + DIGEST_OFFSET, offset + DIGEST_OFFSET + Constants.HASH_LENGTH),
+                    getInt(slots, offset + INDEX_OFFSET),
+                    lastPayword);
+        }
+    }
+
+    @Override
+    public int putIfAbsent(byte[] root, byte[] commitDigest, int lastIndex, byte[] lastPayword, long expiresAt) {
+        Segment segment = segmentFor(root);
+        synchronized (segment) {
+            if (segment.find(root) >= 0)
+                return ALREADY_REDEEMED;
+
+            //0 marks a free slot; the segments grow, so there is always room
+            segment.insert(root, commitDigest, lastIndex, lastPayword, Math.max(expiresAt, 1));
+            return ADDED;
+        }
+    }
+
+    @Override
+    public boolean advance(byte[] root, int expectedIndex, int lastIndex, byte[] lastPayword) {
+        Segment segment = segmentFor(root);
+        synchronized (segment) {
+            int slot = segment.find(root);
+            if (slot < 0)
+                return false;
+
+            byte[] slots = segment.slots;
+            int offset = slot * SLOT_LENGTH;
+            if (getInt(slots, offset + INDEX_OFFSET) != expectedIndex)
+                return false;
+
+            putInt(slots, offset + INDEX_OFFSET, lastIndex);
+            System.arraycopy(lastPayword, 0, slots, offset + PAYWORD_OFFSET, Constants.HASH_LENGTH);
+            return true;
+        }
+    }
+
+    @Override
+    public int purgeExpired(long now) {
+        int purged = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                purged += segment.rebuild(segment.capacity(), now);
+            }
+        }
+        return purged;
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentFor(byte[] root) {
+        //the roots are SHA-1 values, so their bytes are already uniformly spread
+        return segments[root[0] & (NO_OF_SEGMENTS - 1)];
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        return ((long) getInt(bytes, offset) << 32) | (getInt(bytes, offset + 4) & 0xffffffffL);
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        putInt(bytes, offset, (int) (value >>> 32));
+        putInt(bytes, offset + 4, (int) value);
+    }
+
+
+    private static class Segment {
+
+        private byte[] slots;
+        private int size;
+        private volatile BloomFilter bloom;
+
+        Segment(int capacity) {
+            this.slots = new byte[capacity * SLOT_LENGTH];
+            this.size = 0;
+            this.bloom = new BloomFilter(capacity * BLOOM_BITS_PER_SLOT);
+        }
+
+        int capacity() {
+            return slots.length / SLOT_LENGTH;
+        }
+
+        int find(byte[] root) {
+            int mask = capacity() - 1;
+            for (int slot = getInt(root, 4) & mask; !isFree(slot); slot = (slot + 1) & mask) {
+                if (rootEquals(slot, root))
+                    return slot;
+            }
+            return -1;
+        }
+
+        void insert(byte[] root, byte[] commitDigest, int lastIndex, byte[] lastPayword, long expiresAt) {
+            if ((size + 1) * 2 > capacity()) {
+                //drop the expired entries first and grow only if the segment is still too full
+                rebuild(capacity(), System.currentTimeMillis());
+                if ((size + 1) * 2 > capacity())
+                    rebuild(capacity() * 2, System.currentTimeMillis());
+            }
+
+            int mask = capacity() - 1;
+            int slot = getInt(root, 4) & mask;
+            while (!isFree(slot)) {
+                slot = (slot + 1) & mask;
+            }
+
+            int offset = slot * SLOT_LENGTH;
+            System.arraycopy(root, 0, slots, offset + ROOT_OFFSET, Constants.HASH_LENGTH);
+            System.arraycopy(commitDigest, 0, slots, offset + DIGEST_OFFSET, Constants.HASH_LENGTH);
+            System.arraycopy(lastPayword, 0, slots, offset + PAYWORD_OFFSET, Constants.HASH_LENGTH);
+            putInt(slots, offset + INDEX_OFFSET, lastIndex);
+            putLong(slots, offset + EXPIRES_OFFSET, expiresAt);
+            ++size;
+
+            bloom.add(slots, offset + ROOT_OFFSET);
+        }
+
+        /**
+         * Rehash the live entries into a table of the given capacity and rebuild the Bloom filter
+         * @return the number of expired entries dropped
+         */
+        int rebuild(int capacity, long now) {
+            byte[] oldSlots = slots;
+            int oldCapacity = capacity();
+
+            byte[] newSlots = new byte[capacity * SLOT_LENGTH];
+            BloomFilter newBloom = new BloomFilter(capacity * BLOOM_BITS_PER_SLOT);
+            int mask = capacity - 1;
+            int newSize = 0;
+            int dropped = 0;
+
+            for (int oldSlot = 0; oldSlot < oldCapacity; ++oldSlot) {
+                int oldOffset = oldSlot * SLOT_LENGTH;
+                long expiresAt = getLong(oldSlots, oldOffset + EXPIRES_OFFSET);
+                if (expiresAt == 0)
+                    continue;
+                if (expiresAt < now) {
+                    ++dropped;
+                    continue;
+                }
+
+                int slot = getInt(oldSlots, oldOffset + ROOT_OFFSET + 4) & mask;
+                while (getLong(newSlots, slot * SLOT_LENGTH + EXPIRES_OFFSET) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                System.arraycopy(oldSlots, oldOffset, newSlots, slot * SLOT_LENGTH, SLOT_LENGTH);
+                newBloom.add(newSlots, slot * SLOT_LENGTH + ROOT_OFFSET);
+                ++newSize;
+            }
+
+            this.slots = newSlots;
+            this.size = newSize;
+            this.bloom = newBloom;
+
+            return dropped;
+        }
+
+        private boolean isFree(int slot) {
+            return getLong(slots, slot * SLOT_LENGTH + EXPIRES_OFFSET) == 0;
+        }
+
+        private boolean rootEquals(int slot, byte[] root) {
+            int offset = slot * SLOT_LENGTH + ROOT_OFFSET;
+            for (int i = 0; i < Constants.HASH_LENGTH; ++i) {
+                if (slots[offset + i] != root[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+
+    /**
+     * Bloom filter over the 20 bytes roots; the bit positions are taken from the bytes of the root (double hashing)
+     * The bits are set under the lock of the segment, but read without it
+     */
+    private static class BloomFilter {
+
+        private final AtomicLongArray bits;
+        private final int mask;
+
+        BloomFilter(int noOfBits) {
+            this.bits = new AtomicLongArray(noOfBits / 64);
+            this.mask = noOfBits - 1;
+        }
+
+        void add(byte[] bytes, int offset) {
+            int h1 = getInt(bytes, offset + 8);
+            int h2 = getInt(bytes, offset + 12) | 1;
+            for (int i = 0; i < BLOOM_HASHES; ++i) {
+                int bit = (h1 + i * h2) & mask;
+                long word;
+                do {
+                    word = bits.get(bit >>> 6);
+                } while (!bits.compareAndSet(bit >>> 6, word, word | (1L << (bit & 63))));
+            }
+        }
+
+        boolean mightContain(byte[] root) {
+            int h1 = getInt(root, 8);
+            int h2 = getInt(root, 12) | 1;
+            for (int i = 0; i < BLOOM_HASHES; ++i) {
+                int bit = (h1 + i * h2) & mask;
+                if ((bits.get(bit >>> 6) & (1L << (bit & 63))) == 0)
+                    return false;
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package broker;
+
+
+/**
+ * The roots (c0) of the hash chains already redeemed, with the redeem checkpoint of each chain
+ * It is used by the Broker to refuse a hash chain redeemed with another commit and to pay only the new paywords
+ */
+public interface RedeemedRootStore {
+
+    //the results of putIfAbsent
+    int ADDED = 1;
+    int ALREADY_REDEEMED = 0;
+    int FULL = -1;
+
+    /**
+     * Get the redeem checkpoint of a hash chain
+     * @param root the root c0 of the hash chain
+     * @return the checkpoint, or null if the hash chain was never redeemed (or its entry expired)
+     */
+    RedeemState get(byte[] root);
+
+    /**
+     * Record the first redeem of a hash chain
+     * @param root the root c0 of the hash chain
+     * @param commitDigest the digest of the verified commit
+     * @param lastIndex the index of the payword redeemed
+     * @param lastPayword the payword redeemed
+     * @param expiresAt the moment (millis) after which the entry can be dropped
+     * @return ADDED, ALREADY_REDEEMED, or FULL if there is no room left for the root
+     */
+    int putIfAbsent(byte[] root, byte[] commitDigest, int lastIndex, byte[] lastPayword, long expiresAt);
+
+    /**
+     * Move the checkpoint of a hash chain further, only if nobody moved it since it was read
+     * @param root the root c0 of the hash chain
+     * @param expectedIndex the index of the checkpoint that was verified
+     * @param lastIndex the index of the new checkpoint
+     * @param lastPayword the payword of the new checkpoint
+     * @return true if the checkpoint was moved, false otherwise
+     */
+    boolean advance(byte[] root, int expectedIndex, int lastIndex, byte[] lastPayword);
+
+    /**
+     * Drop all the entries that expired (or make their space reusable)
+     * @param now the current moment (millis)
+     * @return the number of entries dropped
+     */
+    int purgeExpired(long now);
+
+    long size();
+
+}
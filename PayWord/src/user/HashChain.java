@@ -0,0 +1,192 @@
+package user;
+
+import utils.Constants;
+import utils.Crypto;
+
+import java.util.Arrays;
+
+
+/**
+ * A hash chain of paywords c(0) ... c(n-1), where c(n-1) = h(secret) and c(i) = h(c(i+1)); c(0) is the root
+ * The paywords are spent from c(0) upwards, the opposite of the order they are computed in. Instead of keeping all the
+ * paywords, the chain keeps c(n-1), the root and a stack of O(log n) pebbles: paywords at positions that halve the
+ * distance to the next payword to spend. Going through the chain in order costs O(log n) hashes per payword (amortized)
+ * A payword before the last one spent is computed again from c(n-1), in O(n) hashes
+ * The pebbles are kept in flat arrays, so a chain is a few objects whatever its length
+ */
+public class HashChain {
+
+    private static final int HASH_LENGTH = Constants.HASH_LENGTH;
+
+    private final int length;
+    private final byte[] anchor; //c(n-1)
+    private final byte[] root; //c(0)
+
+    //the pebbles, the one with the smallest position on top
+    private int[] positions;
+    private byte[] values;
+    private int noOfPebbles;
+
+    //the paywords before nextIndex were already given and are not on the stack anymore
+    private int nextIndex;
+    private int lastIndex;
+    private final byte[] lastValue;
+
+    private long hashCount;
+
+    /**
+     * Create a chain from a new random secret
+     * @param length the number of paywords
+     */
+    public HashChain(int length) {
+        this(Crypto.getSecret(1024), length);
+    }
+
+    /**
+     * Create a chain from the given secret
+     * @param secret the secret
+     * @param length the number of paywords
+     */
+    public HashChain(byte[] secret, int length) {
+        if (length < 1)
+            throw new IllegalArgumentException("length=" + length);
+
+        this.length = length;
+        this.anchor = Crypto.hashMessage(secret);
+        this.root = new byte[HASH_LENGTH];
+        this.lastValue = new byte[HASH_LENGTH];
+        this.lastIndex = -1;
+
+        this.positions = new int[8];
+        this.values = new byte[8 * HASH_LENGTH];
+
+        placeFirstPebbles();
+    }
+
+    /**
+     * Compute the root, and on the way leave the pebbles that the first payword would need, so the first payments cost
+     * no more than the others
+     */
+    private void placeFirstPebbles() {
+        //the positions of the pebbles for c(0): n-1, then halving the distance to 0
+        int[] targets = new int[33];
+        int noOfTargets = 0;
+        for (int position = length - 1; position > 0; position /= 2) {
+            targets[noOfTargets++] = position / 2;
+        }
+
+        push(length - 1, anchor, 0);
+        int position = length - 1;
+        for (int targetNo = 0; targetNo < noOfTargets; ++targetNo) {
+            int target = targets[targetNo];
+            push(target, values, (noOfPebbles - 1) * HASH_LENGTH);
+            hash(values, (noOfPebbles - 1) * HASH_LENGTH, position - target);
+            position = target;
+        }
+
+        System.arraycopy(values, (noOfPebbles - 1) * HASH_LENGTH, root, 0, HASH_LENGTH);
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Get the root of the chain, c(0), to be committed
+     * @return a copy of the root
+     */
+    public byte[] getRoot() {
+        return Arrays.copyOf(root, HASH_LENGTH);
+    }
+
+    /**
+     * Get a payword of the chain
+     * @param index the index of the payword, c(index)
+     * @return a copy of the payword
+     */
+    public byte[] getPayword(int index) {
+        byte[] payword = new byte[HASH_LENGTH];
+        getPayword(index, payword, 0);
+        return payword;
+    }
+
+    /**
+     * Write a payword of the chain in the given buffer, without allocating
+     * @param index the index of the payword, c(index)
+     * @param output where to write the payword
+     * @param offset the index where the HASH_LENGTH bytes of the payword are written
+     */
+    public void getPayword(int index, byte[] output, int offset) {
+        if (index < 0 || index >= length)
+            throw new IllegalArgumentException("index=" + index + " length=" + length);
+
+        if (index != lastIndex) {
+            if (index < nextIndex) {
+                //going back (e.g. a payment sent again): compute it from c(n-1), the pebbles stay for the next ones
+                System.arraycopy(anchor, 0, lastValue, 0, HASH_LENGTH);
+                hash(lastValue, 0, length - 1 - index);
+            } else {
+                traverse(index);
+            }
+            lastIndex = index;
+        }
+
+        System.arraycopy(lastValue, 0, output, offset, HASH_LENGTH);
+    }
+
+    /**
+     * Put the payword at the given index in lastValue, moving the pebbles forward
+     */
+    private void traverse(int index) {
+        //drop the pebbles of the paywords that were skipped
+        while (noOfPebbles > 0 && positions[noOfPebbles - 1] < index) {
+            --noOfPebbles;
+        }
+        if (noOfPebbles == 0) {
+            push(length - 1, anchor, 0);
+        }
+
+        //halve the distance to the index until a pebble is on it
+        int top;
+        while ((top = positions[noOfPebbles - 1]) != index) {
+            int middle = index + (top - index) / 2;
+            push(middle, values, (noOfPebbles - 1) * HASH_LENGTH);
+            hash(values, (noOfPebbles - 1) * HASH_LENGTH, top - middle);
+        }
+
+        --noOfPebbles;
+        System.arraycopy(values, noOfPebbles * HASH_LENGTH, lastValue, 0, HASH_LENGTH);
+        nextIndex = index + 1;
+    }
+
+    private void push(int position, byte[] source, int sourceOffset) {
+        if (noOfPebbles == positions.length) {
+            positions = Arrays.copyOf(positions, 2 * positions.length);
+            values = Arrays.copyOf(values, 2 * values.length);
+        }
+
+        positions[noOfPebbles] = position;
+        System.arraycopy(source, sourceOffset, values, noOfPebbles * HASH_LENGTH, HASH_LENGTH);
+        ++noOfPebbles;
+    }
+
+    private void hash(byte[] buffer, int offset, int times) {
+        Crypto.hashIterated(buffer, offset, times);
+        hashCount += times;
+    }
+
+    /**
+     * @return the number of pebbles kept now
+     */
+    public int getNoOfPebbles() {
+        return noOfPebbles;
+    }
+
+    /**
+     * @return the number of hashes computed by the chain, including the ones to compute the root
+     */
+    public long getHashCount() {
+        return hashCount;
+    }
+
+}
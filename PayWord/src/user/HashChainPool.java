@@ -0,0 +1,188 @@
+package user;
+
+import utils.Constants;
+import utils.DaemonThreadFactory;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Hash chains generated in the background, before they are needed
+ * The first payment to a vendor needs three new chains before the commit can be signed; with the pool it takes chains
+ * that are ready instead of computing them on the spot. The chains are generated on all the cores and the pool is
+ * refilled every time a chain is taken
+ * The number of chains kept ready follows the rate at which they are taken: enough for HASH_CHAIN_POOL_HORIZON_MILLIS,
+ * between HASH_CHAIN_POOL_MIN_SIZE and HASH_CHAIN_POOL_MAX_SIZE
+ * Every chain is given out only once
+ */
+public class HashChainPool {
+
+    //the weight of the last window in the observed rate
+    private static final double RATE_WEIGHT = 0.5;
+    private static final long RATE_WINDOW_NANOS = 1000L * 1000 * 1000;
+
+    private static HashChainPool instance;
+
+    public static synchronized HashChainPool getInstance() {
+        if (instance == null) {
+            instance = new HashChainPool(Constants.HASH_CHAIN_LENGTH, Runtime.getRuntime().availableProcessors());
+        }
+
+        return instance;
+    }
+
+    private final int chainLength;
+    private final ExecutorService generators;
+
+    private final ConcurrentLinkedQueue<HashChain> readyChains = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger noOfReadyChains = new AtomicInteger();
+    private final AtomicInteger noOfPendingChains = new AtomicInteger();
+
+    //the rate at which chains are taken, in chains per second
+    private double takeRate;
+    private long windowStart;
+    private int windowTakes;
+    private int targetSize;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong generated = new AtomicLong();
+
+    /**
+     * Create the pool and start filling it up to the minimum size
+     * @param chainLength the length of the chains in the pool
+     * @param noOfGenerators the number of threads generating chains
+     */
+    public HashChainPool(int chainLength, int noOfGenerators) {
+        this.chainLength = chainLength;
+        this.generators = Executors.newFixedThreadPool(noOfGenerators, new DaemonThreadFactory("hash-chain-pool"));
+
+        this.windowStart = System.nanoTime();
+        this.targetSize = Constants.HASH_CHAIN_POOL_MIN_SIZE;
+        refill();
+    }
+
+    /**
+     * Get a new hash chain: one from the pool if there is one ready, computed now otherwise
+     * @param length the length of the chain
+     * @return a chain that was not given before
+     */
+    public HashChain getHashChain(int length) {
+        if (length != chainLength) {
+            //the pool only keeps chains of one length
+            return new HashChain(length);
+        }
+
+        recordTake();
+
+        HashChain hashChain = readyChains.poll();
+        if (hashChain != null) {
+            noOfReadyChains.decrementAndGet();
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            hashChain = new HashChain(length);
+        }
+
+        refill();
+        return hashChain;
+    }
+
+    /**
+     * Update the observed rate and the number of chains to keep ready
+     */
+    private synchronized void recordTake() {
+        ++windowTakes;
+
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed >= RATE_WINDOW_NANOS) {
+            double windowRate = windowTakes * 1e9 / elapsed;
+            takeRate = RATE_WEIGHT * windowRate + (1 - RATE_WEIGHT) * takeRate;
+            windowStart = now;
+            windowTakes = 0;
+
+            long size = (long) Math.ceil(takeRate * Constants.HASH_CHAIN_POOL_HORIZON_MILLIS / 1000);
+            targetSize = (int) Math.max(Constants.HASH_CHAIN_POOL_MIN_SIZE, Math.min(Constants.HASH_CHAIN_POOL_MAX_SIZE, size));
+        }
+    }
+
+    /**
+     * Start generating chains until the ready and pending chains reach the target size
+     */
+    private synchronized void refill() {
+        while (noOfReadyChains.get() + noOfPendingChains.get() < targetSize) {
+            noOfPendingChains.incrementAndGet();
+            generators.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        readyChains.add(new HashChain(chainLength));
+                        noOfReadyChains.incrementAndGet();
+                        generated.incrementAndGet();
+                    } finally {
+                        noOfPendingChains.decrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+
+    public int getChainLength() {
+        return chainLength;
+    }
+
+    /**
+     * @return the number of chains ready to be taken
+     */
+    public int getNoOfReadyChains() {
+        return noOfReadyChains.get();
+    }
+
+    /**
+     * @return the number of chains the pool tries to keep ready
+     */
+    public synchronized int getTargetSize() {
+        return targetSize;
+    }
+
+    /**
+     * @return the observed rate at which chains are taken, in chains per second
+     */
+    public synchronized double getTakeRate() {
+        return takeRate;
+    }
+
+    /**
+     * @return the number of chains taken from the pool
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of chains computed on the spot because the pool was empty
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of chains generated in the background
+     */
+    public long getGenerated() {
+        return generated.get();
+    }
+
+    @Override
+    public String toString() {
+        return "HashChainPool: ready=" + getNoOfReadyChains() + " target=" + getTargetSize()
+                + " rate=" + String.format("%.1f/s", getTakeRate())
+                + " hits=" + getHits() + " misses=" + getMisses() + " generated=" + getGenerated();
+    }
+
+}
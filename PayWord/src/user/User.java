@@ -3,7 +3,6 @@ package user;
 import backend.Account;
 import backend.Commit;
 import backend.Payment;
-import backend.Payword;
 import broker.Broker;
 import utils.*;
 import vendor.VendorInfo;
@@ -29,9 +28,11 @@ public class User {
 
     private int hashChainLength;
     private Map<VendorInfo, List<Payment>> paymentsDone;
-    private Map<VendorInfo, List<List<Payword>>> hashChains1;
-    private Map<VendorInfo, List<List<Payword>>> hashChains5;
-    private Map<VendorInfo, List<List<Payword>>> hashChains10;
+    //the current hash chains for every vendor; only the pebbles of a chain are kept (see HashChain)
+    private Map<VendorInfo, HashChain> hashChains1;
+    private Map<VendorInfo, HashChain> hashChains5;
+    private Map<VendorInfo, HashChain> hashChains10;
+    private HashChainPool hashChainPool;
 
     public User() {
         broker = Broker.getInstance();
@@ -41,7 +42,9 @@ public class User {
         initIdentity();
         this.account = new Account();
 
-        this.hashChainLength = 10000;
+        this.hashChainLength = Constants.HASH_CHAIN_LENGTH;
+        //start filling the pool, so the chains for the first vendor are ready
+        this.hashChainPool = HashChainPool.getInstance();
         this.paymentsDone = new HashMap<>();
         this.hashChains1 = new HashMap<>();
         this.hashChains5 = new HashMap<>();
@@ -62,7 +65,9 @@ public class User {
         }
         this.account = new Account();
 
-        this.hashChainLength = 10000;
+        this.hashChainLength = Constants.HASH_CHAIN_LENGTH;
+        //start filling the pool, so the chains for the first vendor are ready
+        this.hashChainPool = HashChainPool.getInstance();
         this.paymentsDone = new HashMap<>();
         this.hashChains1 = new HashMap<>();
         this.hashChains5 = new HashMap<>();
@@ -178,72 +183,21 @@ public class User {
 
     /**
      * Generate a new hash chain for the Vendor, in order to make it possible to pay him
+     * The chains are taken from the HashChainPool, which generates them in the background
      * @param vendorInfo the Vendor
      */
     public void generateNewHashChains(VendorInfo vendorInfo) {
-        System.out.println("Started generating hash chains");
-        List<Payword> currentHashChain1 = generateHashChain();
-        List<Payword> currentHashChain5 = generateHashChain();
-        List<Payword> currentHashChain10 = generateHashChain();
-
-        System.out.println("Finished generating hash chains");
-
-        //hash chain for the value 1
-        if (hashChains1.get(vendorInfo) != null) {
-            List<List<Payword>> vendorPreviousHashChains = hashChains1.get(vendorInfo);
-            vendorPreviousHashChains.add(currentHashChain1);
-            hashChains1.remove(vendorInfo);
-            hashChains1.put(vendorInfo, vendorPreviousHashChains);
-        }
-        else {
-            List<List<Payword>> vendorPreviousHashChains = new ArrayList<>();
-            vendorPreviousHashChains.add(currentHashChain1);
-            hashChains1.put(vendorInfo, vendorPreviousHashChains);
-        }
+        Log.debug("Started generating hash chains");
+        HashChain currentHashChain1 = hashChainPool.getHashChain(this.hashChainLength);
+        HashChain currentHashChain5 = hashChainPool.getHashChain(this.hashChainLength);
+        HashChain currentHashChain10 = hashChainPool.getHashChain(this.hashChainLength);
 
-        //hash chain for the value 5
-        if (hashChains5.get(vendorInfo) != null) {
-            List<List<Payword>> vendorPreviousHashChains = hashChains5.get(vendorInfo);
-            vendorPreviousHashChains.add(currentHashChain5);
-            hashChains5.remove(vendorInfo);
-            hashChains5.put(vendorInfo, vendorPreviousHashChains);
-        }
-        else {
-            List<List<Payword>> vendorPreviousHashChains = new ArrayList<>();
-            vendorPreviousHashChains.add(currentHashChain5);
-            hashChains5.put(vendorInfo, vendorPreviousHashChains);
-        }
-
-        //hash chain for the value 10
-        if (hashChains10.get(vendorInfo) != null) {
-            List<List<Payword>> vendorPreviousHashChains = hashChains10.get(vendorInfo);
-            vendorPreviousHashChains.add(currentHashChain10);
-            hashChains10.remove(vendorInfo);
-            hashChains10.put(vendorInfo, vendorPreviousHashChains);
-        }
-        else {
-            List<List<Payword>> vendorPreviousHashChains = new ArrayList<>();
-            vendorPreviousHashChains.add(currentHashChain10);
-            hashChains10.put(vendorInfo, vendorPreviousHashChains);
-        }
+        Log.debug("Finished generating hash chains");
 
-    }
-
-    private List<Payword> generateHashChain() {
-        List<Payword> currentHashChain = new ArrayList<>();
-
-        byte[] cn = Crypto.getSecret(1024);
-
-        Payword last = new Payword(cn); //c(n-1)
-        currentHashChain.add(last);
-        int i = 1;
-        for (i = this.hashChainLength - 2; i >= 0; --i) {
-            Payword current = new Payword(last);
-            currentHashChain.add(current);
-
-            last = current;
-        }
-        return currentHashChain;
+        //the new chains replace the previous ones: only the last chains computed for a vendor are used
+        hashChains1.put(vendorInfo, currentHashChain1);
+        hashChains5.put(vendorInfo, currentHashChain5);
+        hashChains10.put(vendorInfo, currentHashChain10);
     }
 
     /**
@@ -279,25 +233,19 @@ public class User {
         }
 
         //copy the root of the signedHash chain, c01
-        List<List<Payword>> allHashChains1 = hashChains1.get(vendorInfo);
-        List<Payword> lastHashChainComputed1 = allHashChains1.get(allHashChains1.size() - 1);
-        byte[] c01 = lastHashChainComputed1.get(this.hashChainLength - 1).getBytes();
+        byte[] c01 = hashChains1.get(vendorInfo).getRoot();
         for (int i = 0; i < c01.length; ++i, ++index) {
             message[index] = c01[i];
         }
 
         //copy the root of the signedHash chain, c05
-        List<List<Payword>> allHashChains5 = hashChains5.get(vendorInfo);
-        List<Payword> lastHashChainComputed5 = allHashChains1.get(allHashChains5.size() - 1);
-        byte[] c05 = lastHashChainComputed5.get(this.hashChainLength - 1).getBytes();
+        byte[] c05 = hashChains5.get(vendorInfo).getRoot();
         for (int i = 0; i < c05.length; ++i, ++index) {
             message[index] = c05[i];
         }
 
         //copy the root of the signedHash chain, c010
-        List<List<Payword>> allHashChains10 = hashChains10.get(vendorInfo);
-        List<Payword> lastHashChainComputed10 = allHashChains10.get(allHashChains10.size() - 1);
-        byte[] c010 = lastHashChainComputed10.get(this.hashChainLength - 1).getBytes();
+        byte[] c010 = hashChains10.get(vendorInfo).getRoot();
         for (int i = 0; i < c010.length; ++i, ++index) {
             message[index] = c010[i];
         }
@@ -320,19 +268,7 @@ public class User {
         byte[] signedHash = null;
 
         //sign the message
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA1WithRSA");
-            sig.initSign(getPrivateKey());
-            sig.update(message);
-            signedHash = sig.sign();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-        } catch (SignatureException e) {
-            e.printStackTrace();
-        }
+        signedHash = Crypto.sign(getPrivateKey(), message);
 
         size += signedHash.length; //the length of the signed hash
         byte[] commitBytes = new byte[size];
@@ -365,70 +301,36 @@ public class User {
     public Payment constructPayment(VendorInfo vendorInfo, int paymentNo, int paywordValue) {
         byte[] bytes = new byte[28];
 
-        System.out.println("User.constructPayment: paymentNo=" + paymentNo);
+        Log.debug("User.constructPayment: paymentNo={}", paymentNo);
 
         int index = 0;
 
         //copy the paymentNo-th payword from the corresponding hash chain
+        HashChain hashChain;
         switch (paywordValue) {
             case Constants.PaywordValue.FIVE:
-                System.out.println("User.constructPayment: Payword Value = FIVE");
-                List<List<Payword>> allHashChains5 = hashChains5.get(vendorInfo);
-                List<Payword> lastHashChainComputed5 = allHashChains5.get(allHashChains5.size() - 1);
-                byte[] ci = lastHashChainComputed5.get(this.hashChainLength - paymentNo - 1).getBytes();
-                for (int i = 0; i < ci.length; ++i, ++index) {
-                    bytes[index] = ci[i];
-                }
-
-                //System.out.println("User.constructPayment: " + Arrays.toString(ci));
-
-                //copy the bytes of paymentNo
-                byte[] paymentNoBytes = ByteBuffer.allocate(4).putInt(paymentNo).array();
-                for (int i = 0; i < paymentNoBytes.length; ++i, ++index) {
-                    bytes[index] = paymentNoBytes[i];
-                }
-
+                Log.debug("User.constructPayment: Payword Value = FIVE");
+                hashChain = hashChains5.get(vendorInfo);
                 break;
 
             case Constants.PaywordValue.TEN:
-                System.out.println("User.constructPayment: Payword Value = TEN");
-                List<List<Payword>> allHashChains10 = hashChains10.get(vendorInfo);
-                List<Payword> lastHashChainComputed10 = allHashChains10.get(allHashChains10.size() - 1);
-                ci = lastHashChainComputed10.get(this.hashChainLength - paymentNo - 1).getBytes();
-                for (int i = 0; i < ci.length; ++i, ++index) {
-                    bytes[index] = ci[i];
-                }
-
-                //System.out.println("User.constructPayment: " + Arrays.toString(ci));
-
-                //copy the bytes of paymentNo
-                paymentNoBytes = ByteBuffer.allocate(4).putInt(paymentNo).array();
-                for (int i = 0; i < paymentNoBytes.length; ++i, ++index) {
-                    bytes[index] = paymentNoBytes[i];
-                }
-
+                Log.debug("User.constructPayment: Payword Value = TEN");
+                hashChain = hashChains10.get(vendorInfo);
                 break;
 
             case Constants.PaywordValue.ONE:
             default:
-                System.out.println("User.constructPayment: Payword Value = ONE");
-                List<List<Payword>> allHashChains1 = hashChains1.get(vendorInfo);
-                List<Payword> lastHashChainComputed1 = allHashChains1.get(allHashChains1.size() - 1);
-                ci = lastHashChainComputed1.get(this.hashChainLength - paymentNo - 1).getBytes();
-                for (int i = 0; i < ci.length; ++i, ++index) {
-                    bytes[index] = ci[i];
-                }
-
-                //System.out.println("User.constructPayment: " + Arrays.toString(ci));
-
-                //copy the bytes of paymentNo
-                paymentNoBytes = ByteBuffer.allocate(4).putInt(paymentNo).array();
-                for (int i = 0; i < paymentNoBytes.length; ++i, ++index) {
-                    bytes[index] = paymentNoBytes[i];
-                }
-
+                Log.debug("User.constructPayment: Payword Value = ONE");
+                hashChain = hashChains1.get(vendorInfo);
                 break;
+        }
+        hashChain.getPayword(paymentNo, bytes, index);
+        index += Constants.HASH_LENGTH;
 
+        //copy the bytes of paymentNo
+        byte[] paymentNoBytes = ByteBuffer.allocate(4).putInt(paymentNo).array();
+        for (int i = 0; i < paymentNoBytes.length; ++i, ++index) {
+            bytes[index] = paymentNoBytes[i];
         }
 
         //copy the bytes of paywordValue
@@ -443,7 +345,14 @@ public class User {
         return payment;
     }
 
+    /**
+     * Get the number of paywords paid to the Vendor, which is also the index of the next payword
+     * @param vendorInfo the Vendor
+     * @return the number of paywords paid
+     */
     public int getVendorNoOfPayments(VendorInfo vendorInfo) {
-        return paymentsDone.get(vendorInfo).size();
+        //a PAY_N payment pays for all the paywords up to its own
+        List<Payment> paymentList = paymentsDone.get(vendorInfo);
+        return paymentList.get(paymentList.size() - 1).getPaywordNo() + 1;
     }
 }
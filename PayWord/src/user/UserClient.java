@@ -6,15 +6,16 @@ import backend.Payment;
 import broker.Bank;
 import broker.BrokerServer;
 import utils.Constants;
+import utils.FramedTransport;
+import utils.Log;
 import vendor.VendorInfo;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
 
 
 public class UserClient {
@@ -23,28 +24,25 @@ public class UserClient {
     private User user;
     private String brokerHostname;
     private int brokerPort;
-    private Socket brokerConnection;
-    private DataInputStream brokerDataInputStream;
-    private DataOutputStream brokerDataOutputStream;
+    private FramedTransport brokerTransport;
 
     private byte[] vendorIdentity;
-    private Socket vendorConnection;
-    private DataInputStream vendorDataInputStream;
-    private DataOutputStream vendorDataOutputStream;
+    private FramedTransport vendorTransport;
+
+    //the payments sent and not acknowledged yet, oldest first: the vendor acknowledges them in the same order
+    private int paymentWindow = Constants.PAYMENT_WINDOW;
+    private Deque<PendingPayment> pendingPayments = new ArrayDeque<>();
+    private int nextPaywordNo;
     //endregion
 
     //region Broker
     public boolean connectToBroker(String brokerHostname, int brokerPort) {
-        System.out.println("UserClient.connectToBroker");
+        Log.debug("UserClient.connectToBroker");
         try {
             this.brokerHostname = brokerHostname;
             this.brokerPort = brokerPort;
 
-            InetAddress brokerAddress = InetAddress.getByName(this.brokerHostname);
-            this.brokerConnection = new Socket(brokerAddress, this.brokerPort);
-
-            this.brokerDataInputStream = new DataInputStream(brokerConnection.getInputStream());
-            this.brokerDataOutputStream = new DataOutputStream(brokerConnection.getOutputStream());
+            this.brokerTransport = FramedTransport.connect(this.brokerHostname, this.brokerPort);
         } catch (UnknownHostException e) {
             e.printStackTrace();
             return false;
@@ -57,9 +55,9 @@ public class UserClient {
     }
 
     public boolean endCommunicationWithBroker() {
-        System.out.println("UserClient.endCommunicationWithBroker");
+        Log.debug("UserClient.endCommunicationWithBroker");
         try {
-            this.brokerDataOutputStream.writeInt(Constants.CommunicationProtocol.END_COMMUNICATION);
+            this.brokerTransport.send(Constants.CommunicationProtocol.END_COMMUNICATION);
         } catch (UnknownHostException e) {
             e.printStackTrace();
         } catch (IOException e) {
@@ -71,40 +69,29 @@ public class UserClient {
     }
 
     public boolean registerToBroker(long creditLimit) {
-        System.out.println("UserClient.registerToBroker");
+        Log.debug("UserClient.registerToBroker");
         try {
             int response;
 
             //send register command + all info required and wait for confirmation
             do {
-                //send USER_REGISTER_TO_BROKER command
-                this.brokerDataOutputStream.writeInt(Constants.CommunicationProtocol.USER_REGISTER_TO_BROKER);
-
+                //send USER_REGISTER_TO_BROKER command, the length of the personal info and the personal info
                 byte[] personalInfo = this.user.getPersonalInfo(creditLimit);
-                //send length of personal info message
-                int personalInfoLength = personalInfo.length;
-                this.brokerDataOutputStream.writeInt(personalInfoLength);
-
-                //send personal info
-                this.brokerDataOutputStream.write(personalInfo);
+                this.brokerTransport.send(Constants.CommunicationProtocol.USER_REGISTER_TO_BROKER, personalInfo);
 
                 //wait for confirmation
-                response = this.brokerDataInputStream.readInt();
-                System.out.println("UserClient.registerToBroker: response=" + response);
+                response = this.brokerTransport.readInt();
+                Log.debug("UserClient.registerToBroker: response={}", response);
             }while(response == Constants.CommunicationProtocol.NOK);
 
-            //get the user certificate length
-            int userCertificateLength = this.brokerDataInputStream.readInt();
-
-            //get the user certificate
-            byte[] userCertificate = new byte[userCertificateLength];
-            this.brokerDataInputStream.read(userCertificate);
+            //get the user certificate length and the user certificate
+            byte[] userCertificate = this.brokerTransport.readPayload();
             this.user.setUserCertificate(userCertificate);
-            System.out.println("UserClient.registerToBroker: userCertificate=" + Arrays.toString(this.user.getUserCertificate()));
-            System.out.println("UserClient.registerToBroker: userCertificate=" + Arrays.toString(userCertificate));
-            System.out.println("UserClient.registerToBroker: userCertificate=" + Arrays.toString(this.user.getUserCertificate()));
+            Log.debug("UserClient.registerToBroker: userCertificate={}", this.user.getUserCertificate());
+            Log.debug("UserClient.registerToBroker: userCertificate={}", userCertificate);
+            Log.debug("UserClient.registerToBroker: userCertificate={}", this.user.getUserCertificate());
 
-            System.out.println("UserClient.registerToBroker: register OK");
+            Log.info("UserClient.registerToBroker: register OK");
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -117,14 +104,22 @@ public class UserClient {
 
     //region Vendor
     public boolean connectToVendor(String vendorHostname, int vendorPort) {
-        System.out.println("UserClient.connectToVendor");
+        Log.debug("UserClient.connectToVendor");
         try {
-            InetAddress vendorAddress = InetAddress.getByName(vendorHostname);
-            this.vendorConnection = new Socket(vendorAddress, vendorPort);
+            FramedTransport vendorTransport = FramedTransport.connect(vendorHostname, vendorPort);
+
+            //a reconnect: close the old connection; the acknowledgements of the payments in flight on it will never be read
+            if (this.vendorTransport != null) {
+                try {
+                    this.vendorTransport.close();
+                } catch (IOException e) {
+                    Log.debug("UserClient.connectToVendor: the old connection can't be closed: {}", e.getMessage());
+                }
+                failPendingPayments(new IOException("UserClient: the connection to the vendor was replaced"));
+            }
 
-            this.vendorDataInputStream = new DataInputStream(vendorConnection.getInputStream());
-            this.vendorDataOutputStream = new DataOutputStream(vendorConnection.getOutputStream());
-            System.out.println("UserClient.connectToVendor: connection started");
+            this.vendorTransport = vendorTransport;
+            Log.info("UserClient.connectToVendor: connection started");
         } catch (UnknownHostException e) {
             e.printStackTrace();
             return false;
@@ -137,9 +132,10 @@ public class UserClient {
     }
 
     public boolean endCommunicationWithVendor() {
-        System.out.println("UserClient.endCommunicationWithVendor");
+        Log.debug("UserClient.endCommunicationWithVendor");
         try {
-            this.vendorDataOutputStream.writeInt(Constants.CommunicationProtocol.END_COMMUNICATION);
+            awaitPayments();
+            this.vendorTransport.send(Constants.CommunicationProtocol.END_COMMUNICATION);
         } catch (UnknownHostException e) {
             e.printStackTrace();
         } catch (IOException e) {
@@ -151,18 +147,16 @@ public class UserClient {
     }
 
     public boolean getVendorIdentity() {
-        System.out.println("UserClient.getVendorIdentity");
+        Log.debug("UserClient.getVendorIdentity");
         try {
-            //send GET_IDENTITY command
-            this.vendorDataOutputStream.writeInt(Constants.CommunicationProtocol.GET_IDENTITY);
+            awaitPayments();
 
-            //get the identity length
-            int vendorIdentityLength = this.vendorDataInputStream.readInt();
-            this.vendorIdentity = new byte[vendorIdentityLength]; //should be 128 bits (1024 bits for the identity)
+            //send GET_IDENTITY command
+            this.vendorTransport.send(Constants.CommunicationProtocol.GET_IDENTITY);
 
-            //get the identity
-            this.vendorDataInputStream.read(this.vendorIdentity);
-            System.out.println("UserClient.getVendorIdentity: vendorIdentity=" + Arrays.toString(this.vendorIdentity));
+            //get the identity length and the identity
+            this.vendorIdentity = this.vendorTransport.readPayload(); //should be 128 bits (1024 bits for the identity)
+            Log.debug("UserClient.getVendorIdentity: vendorIdentity={}", this.vendorIdentity);
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -173,45 +167,52 @@ public class UserClient {
     }
 
     public boolean makePaymentToVendor() {
-        System.out.println("UserClient.makePaymentToVendor");
+        return makePaymentToVendor(1);
+    }
+
+    /**
+     * Pay the next paywords of the chain with one message: MAKE_PAYMENT for one payword, PAY_N for more, which sends
+     * only the last of them
+     * @param noOfPaywords the number of paywords to pay, at most the maximum the vendor accepts in a PAY_N payment
+     * @return true if the payment was done, false otherwise
+     */
+    public boolean makePaymentToVendor(int noOfPaywords) {
+        Log.debug("UserClient.makePaymentToVendor: noOfPaywords={}", noOfPaywords);
         try {
             int paymentNo;
 
             VendorInfo vendorInfo = new VendorInfo();
             vendorInfo.setIdentity(vendorIdentity);
 
+            awaitPayments();
+
             if (user.isFirstPayment(vendorInfo)) {
                 paymentNo = 0;
-
-                //generate the new hash chain for this vendor
-                user.generateNewHashChains(vendorInfo);
-
-                //compute the commit(V)
-                Commit commit = user.computeCommitment(vendorInfo);
-                //System.out.println("UserClient.makePaymentToVendor: commitBytes=" + Arrays.toString(commit.getBytes()));
-
-                //test
-                UserInfo userInfo = commit.getUserInfoFromCommit();
-                //System.out.println("UserClient.makePaymentToVendor: userInfo=" + userInfo);
-
-                //send the commit to the vendor
-                boolean sendCommitResponse;
-                do {
-                    sendCommitResponse = sendCommit(commit);
-                }while(!sendCommitResponse);
-                System.out.println("UserClient.makePaymentToVendor: sendCommit finished with success!");
+                if (!commitToVendor(vendorInfo))
+                    return false;
             }
             else {
                 paymentNo = user.getVendorNoOfPayments(vendorInfo);
             }
 
             //send make payment command and wait for confirmation
+            //a NOK is sent again a few times only: the vendor answers NOK for as long as it has no commit of the user
             int response;
+            int attempts = 0;
             do {
                 //construct and send the payment to the vendor
-                //construct the Payment
-                Payment payment = user.constructPayment(vendorInfo, paymentNo, Constants.PaywordValue.ONE);
-                response = sendPayment(payment);
+                //construct the Payment, with the last of the paywords paid
+                Payment payment = user.constructPayment(vendorInfo, paymentNo + noOfPaywords - 1, Constants.PaywordValue.ONE);
+                if (noOfPaywords == 1) {
+                    response = sendPayment(payment, Constants.CommunicationProtocol.MAKE_PAYMENT);
+                } else {
+                    response = sendPayment(payment, Constants.CommunicationProtocol.PAY_N);
+                    if (response == Constants.CommunicationProtocol.NOK) {
+                        //e.g. more paywords than the vendor accepts in a payment: sending it again won't help
+                        Log.warn("UserClient.makePaymentToVendor: PAY_N refused");
+                        return false;
+                    }
+                }
 
                 //response = sendPayment(payment); //for testing purposes: test if the vendor reacts to fraud attempts
 
@@ -219,12 +220,18 @@ public class UserClient {
                     user.addPaymentToListOfPayments(vendorInfo, payment);
                 }
 
-            }while(response == Constants.CommunicationProtocol.NOK && response != Constants.CommunicationProtocol.FRAUD);
+            }while(response == Constants.CommunicationProtocol.NOK && ++attempts < Constants.MAX_PAYMENT_ATTEMPTS);
+
+            if (response == Constants.CommunicationProtocol.NOK) {
+                Log.warn("UserClient.makePaymentToVendor: payment NOK after {} attempts", attempts);
+                return false;
+            }
+            else if (response != Constants.CommunicationProtocol.OK) {
+                Log.warn("UserClient.makePaymentToVendor: FRAUD ATTEMPT");
+                return false;
+            }
 
-            if (response != Constants.CommunicationProtocol.FRAUD)
-                System.out.println("UserClient.makePaymentToVendor: payment DONE");
-            else
-                System.out.println("UserClient.makePaymentToVendor: FRAUD ATTEMPT");
+            Log.debug("UserClient.makePaymentToVendor: payment DONE");
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -234,32 +241,172 @@ public class UserClient {
         return true;
     }
 
+    /**
+     * Set the number of payments sent by makePaymentToVendorAsync before waiting for an acknowledgement
+     * @param paymentWindow the maximum number of payments in flight
+     */
+    public void setPaymentWindow(int paymentWindow) {
+        this.paymentWindow = Math.max(paymentWindow, 1);
+    }
+
+    /**
+     * Pay the next paywords without waiting for the vendor: up to paymentWindow payments are in flight, and their
+     * acknowledgements are read when the window is full or by awaitPayments
+     * The vendor acknowledges the payments in the order they were sent, so the oldest pending payment is the one
+     * acknowledged. If a payment is refused, the payments sent after it are refused too (they don't follow the last
+     * payword the vendor accepted): the window is emptied and the next payment starts again after the last payword
+     * accepted
+     * @param noOfPaywords the number of paywords to pay: MAKE_PAYMENT for one, PAY_N for more
+     * @return completed with the response of the vendor (OK, NOK or FRAUD), or exceptionally if the connection fails
+     */
+    public CompletableFuture<Integer> makePaymentToVendorAsync(int noOfPaywords) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        try {
+            VendorInfo vendorInfo = new VendorInfo();
+            vendorInfo.setIdentity(vendorIdentity);
+
+            while (pendingPayments.size() >= paymentWindow) {
+                readPaymentAcknowledgement(vendorInfo);
+            }
+
+            //nothing in flight (e.g. the window was rolled back): continue after the last payword accepted
+            if (pendingPayments.isEmpty()) {
+                if (user.isFirstPayment(vendorInfo)) {
+                    if (!commitToVendor(vendorInfo)) {
+                        future.complete(Constants.CommunicationProtocol.NOK);
+                        return future;
+                    }
+                    nextPaywordNo = 0;
+                } else {
+                    nextPaywordNo = user.getVendorNoOfPayments(vendorInfo);
+                }
+            }
+
+            int commandID = noOfPaywords == 1 ? Constants.CommunicationProtocol.MAKE_PAYMENT : Constants.CommunicationProtocol.PAY_N;
+            Payment payment = user.constructPayment(vendorInfo, nextPaywordNo + noOfPaywords - 1, Constants.PaywordValue.ONE);
+            this.vendorTransport.send(commandID, payment.getBytes());
+
+            nextPaywordNo += noOfPaywords;
+            pendingPayments.addLast(new PendingPayment(payment, future));
+        } catch (IOException e) {
+            e.printStackTrace();
+            failPendingPayments(e);
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Wait for the acknowledgements of all the payments in flight
+     * @return true if all of them were accepted, false otherwise
+     */
+    public boolean awaitPayments() {
+        if (pendingPayments.isEmpty())
+            return true;
+
+        VendorInfo vendorInfo = new VendorInfo();
+        vendorInfo.setIdentity(vendorIdentity);
+
+        boolean result = true;
+        try {
+            while (!pendingPayments.isEmpty()) {
+                if (readPaymentAcknowledgement(vendorInfo) != Constants.CommunicationProtocol.OK)
+                    result = false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            failPendingPayments(e);
+            return false;
+        }
+
+        return result;
+    }
+
+    /**
+     * Read the acknowledgement of the oldest payment in flight and complete it
+     * @return the response of the vendor
+     */
+    private int readPaymentAcknowledgement(VendorInfo vendorInfo) throws IOException {
+        int response = this.vendorTransport.readInt();
+        PendingPayment pendingPayment = pendingPayments.removeFirst();
+        Log.debug("UserClient.readPaymentAcknowledgement: paymentNo={} response={}", pendingPayment.payment.getPaywordNo(), response);
+
+        if (response == Constants.CommunicationProtocol.OK) {
+            user.addPaymentToListOfPayments(vendorInfo, pendingPayment.payment);
+        } else {
+            //roll back: the payments after this one can't be accepted, wait for their responses and start again
+            pendingPayment.future.complete(response);
+            while (!pendingPayments.isEmpty()) {
+                readPaymentAcknowledgement(vendorInfo);
+            }
+            return response;
+        }
+
+        pendingPayment.future.complete(response);
+        return response;
+    }
+
+    private void failPendingPayments(IOException e) {
+        while (!pendingPayments.isEmpty()) {
+            pendingPayments.removeFirst().future.completeExceptionally(e);
+        }
+    }
+
     public boolean payValue(long value) {
-        for (long i = 0; i < value; ++i) {
-            if (this.makePaymentToVendor() == false)
+        //one round trip for up to MAX_PAYWORDS_PER_PAYMENT paywords
+        while (value > 0) {
+            int noOfPaywords = (int) Math.min(value, Constants.MAX_PAYWORDS_PER_PAYMENT);
+            if (this.makePaymentToVendor(noOfPaywords) == false)
                 return false;
+            value -= noOfPaywords;
         }
 
         return true;
     }
 
-    private boolean sendCommit(Commit commit) throws IOException {
-        System.out.println("UserClient.sendCommit");
+    /**
+     * Start paying a vendor: generate the hash chains and send the commit
+     * @return true if the vendor accepted the commit, false if it refused it MAX_PAYMENT_ATTEMPTS times
+     */
+    private boolean commitToVendor(VendorInfo vendorInfo) throws IOException {
+        //generate the new hash chain for this vendor
+        user.generateNewHashChains(vendorInfo);
+
+        //compute the commit(V)
+        Commit commit = user.computeCommitment(vendorInfo);
+        //System.out.println("UserClient.makePaymentToVendor: commitBytes=" + Arrays.toString(commit.getBytes()));
+
+        //test
+        UserInfo userInfo = commit.getUserInfoFromCommit();
+        //System.out.println("UserClient.makePaymentToVendor: userInfo=" + userInfo);
+
+        //send the commit to the vendor
+        boolean sendCommitResponse;
+        int attempts = 0;
+        do {
+            sendCommitResponse = sendCommit(commit);
+        }while(!sendCommitResponse && ++attempts < Constants.MAX_PAYMENT_ATTEMPTS);
+
+        if (!sendCommitResponse) {
+            Log.warn("UserClient.commitToVendor: commit NOK after {} attempts", attempts);
+            return false;
+        }
 
-        //send COMMIT command to Vendor
-        this.vendorDataOutputStream.writeInt(Constants.CommunicationProtocol.COMMIT);
+        Log.debug("UserClient.makePaymentToVendor: sendCommit finished with success!");
+        return true;
+    }
 
-        //send commit length
-        this.vendorDataOutputStream.writeInt(commit.getBytes().length);
-        //System.out.println("UserClient.sendCommit: commitLength=" + commit.getBytes().length);
+    private boolean sendCommit(Commit commit) throws IOException {
+        Log.debug("UserClient.sendCommit");
 
-        //send commit bytes
-        this.vendorDataOutputStream.write(commit.getBytes());
+        //send COMMIT command to Vendor, the commit length and the commit bytes
+        this.vendorTransport.send(Constants.CommunicationProtocol.COMMIT, commit.getBytes());
         //System.out.println("UserClient.sendCommit: commitBytes=" + Arrays.toString(commit.getBytes()));
 
         //wait for confirmation
-        int response = this.vendorDataInputStream.readInt();
-        System.out.println("UserClient.sendCommit: response=" + response);
+        int response = this.vendorTransport.readInt();
+        Log.debug("UserClient.sendCommit: response={}", response);
 
         if (response == Constants.CommunicationProtocol.OK)
             return true;
@@ -267,21 +414,15 @@ public class UserClient {
         return false;
     }
 
-    private int sendPayment(Payment payment) throws IOException {
-        System.out.println("UserClient.sendPayment");
-
-        //send MAKE_PAYMENT command
-        this.vendorDataOutputStream.writeInt(Constants.CommunicationProtocol.MAKE_PAYMENT);
-
-        //send payment length
-        this.vendorDataOutputStream.writeInt(payment.getBytes().length);
+    private int sendPayment(Payment payment, int commandID) throws IOException {
+        Log.debug("UserClient.sendPayment: commandID={}", commandID);
 
-        //send payment bytes
-        this.vendorDataOutputStream.write(payment.getBytes());
+        //send MAKE_PAYMENT or PAY_N command, the payment length and the payment bytes
+        this.vendorTransport.send(commandID, payment.getBytes());
 
         //wait for confirmation
-        int response = this.vendorDataInputStream.readInt();
-        System.out.println("UserClient.sendPayment: response=" + response);
+        int response = this.vendorTransport.readInt();
+        Log.debug("UserClient.sendPayment: response={}", response);
 
         return response;
     }
@@ -292,6 +433,21 @@ public class UserClient {
     }
 
 
+    /**
+     * A payment sent to the vendor and not acknowledged yet
+     */
+    private static class PendingPayment {
+
+        private final Payment payment;
+        private final CompletableFuture<Integer> future;
+
+        private PendingPayment(Payment payment, CompletableFuture<Integer> future) {
+            this.payment = payment;
+            this.future = future;
+        }
+    }
+
+
     public static void main(String[] args) {
         Bank bank = Bank.getInstance();
 
@@ -0,0 +1,168 @@
+package utils;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Writes the messages of Log from a daemon thread, so the threads that log never wait for the console
+ * The messages go through a bounded ring: any thread claims the next slot with a compare-and-set and fills it, the
+ * appender thread empties the slots in order, formats the messages and prints them in one write per batch
+ * When the ring is full the message is dropped and counted, except an error, which is printed by the caller
+ */
+class AsyncAppender implements Runnable {
+
+    private static final long IDLE_PARK_NANOS = 1000L * 1000;
+
+    private static class Entry {
+
+        private final int level;
+        private final String format;
+        private final Object[] arguments;
+        private final Throwable throwable;
+
+        private Entry(int level, String format, Object[] arguments, Throwable throwable) {
+            this.level = level;
+            this.format = format;
+            this.arguments = arguments;
+            this.throwable = throwable;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+
+    //the next slot to claim, and the next slot to write; tail - head entries are in the ring
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private long droppedReported;
+
+    private final Thread thread;
+
+    /**
+     * @param capacity the number of messages the ring holds, rounded up to a power of 2
+     */
+    AsyncAppender(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+
+        this.thread = new DaemonThreadFactory("log-appender").newThread(this);
+        this.thread.start();
+
+        //write what is left when the process exits
+        try {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }));
+        } catch (IllegalStateException e) {
+            //first used while the process exits: the messages are written by the thread until it stops
+        }
+    }
+
+    void append(int level, String format, Object[] arguments, Throwable throwable) {
+        Entry entry = new Entry(level, format, arguments, throwable);
+
+        long claimed;
+        do {
+            claimed = tail.get();
+            if (claimed - head >= slots.length()) {
+                dropped.incrementAndGet();
+                if (level == Log.ERROR)
+                    print(System.err, entry, new StringBuilder());
+                return;
+            }
+        } while (!tail.compareAndSet(claimed, claimed + 1));
+
+        slots.lazySet((int) (claimed & mask), entry);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            if (!drain())
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Write the messages in the ring
+     * @return true if there was at least one
+     */
+    private synchronized boolean drain() {
+        StringBuilder batch = new StringBuilder();
+        long position = head;
+        while (position < tail.get()) {
+            int index = (int) (position & mask);
+            Entry entry = slots.get(index);
+            if (entry == null) {
+                //claimed but not filled yet
+                Thread.yield();
+                continue;
+            }
+
+            slots.set(index, null);
+            head = ++position;
+            print(null, entry, batch);
+        }
+
+        long droppedNow = dropped.get();
+        if (droppedNow != droppedReported) {
+            batch.append("Log: ").append(droppedNow - droppedReported).append(" messages dropped").append(System.lineSeparator());
+            droppedReported = droppedNow;
+        }
+
+        if (batch.length() == 0)
+            return false;
+
+        System.out.print(batch);
+        System.out.flush();
+        return true;
+    }
+
+    private void print(PrintStream stream, Entry entry, StringBuilder batch) {
+        if (entry.level == Log.ERROR)
+            batch.append("ERROR ");
+        else if (entry.level == Log.WARN)
+            batch.append("WARN ");
+        batch.append(Log.format(entry.format, entry.arguments)).append(System.lineSeparator());
+
+        if (entry.throwable != null) {
+            StringWriter stackTrace = new StringWriter();
+            entry.throwable.printStackTrace(new PrintWriter(stackTrace));
+            batch.append(stackTrace);
+        }
+
+        if (stream != null)
+            stream.print(batch);
+    }
+
+    /**
+     * Wait until the messages appended so far are written
+     */
+    void flush() {
+        long target = tail.get();
+        while (head < target) {
+            LockSupport.unpark(thread);
+            Thread.yield();
+        }
+        //the batch with the last message may still be printing
+        synchronized (this) {
+            System.out.flush();
+        }
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+}
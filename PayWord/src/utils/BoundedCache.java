@@ -0,0 +1,122 @@
+package utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A map with a maximum size, where every entry also has an expiry date
+ * When the cache is full the entry used least recently is evicted; an expired entry is removed when it is looked up
+ * The hits and misses are counted, to know if the cache is worth it
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class BoundedCache<K, V> {
+
+    private static class Entry<V> {
+
+        private final V value;
+        private final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxSize;
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    /**
+     * @param maxSize the maximum number of entries
+     */
+    public BoundedCache(int maxSize) {
+        this.maxSize = maxSize;
+        //in access order, so the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > BoundedCache.this.maxSize) {
+                    ++evictions;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the value of a key
+     * @param key the key
+     * @return the value, or null if the key is not in the cache or its entry expired
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(key);
+            ++expirations;
+            ++misses;
+            return null;
+        }
+
+        ++hits;
+        return entry.value;
+    }
+
+    /**
+     * Add or replace the value of a key
+     * @param key the key
+     * @param value the value
+     * @param expiresAt the time in milliseconds after which the value is not returned anymore
+     */
+    public synchronized void put(K key, V value, long expiresAt) {
+        entries.put(key, new Entry<>(value, expiresAt));
+    }
+
+    public synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    /**
+     * @return the part of the lookups that found a value, between 0 and 1
+     */
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+}
@@ -0,0 +1,88 @@
+package utils;
+
+import java.util.Arrays;
+
+
+/**
+ * Immutable key over a range of bytes (an identity, an encoded key, a digest), to be used in hash maps
+ * The hash is computed once, when the key is created
+ */
+public final class ByteKey {
+
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+    private final int hash;
+
+    /**
+     * Create a key with a copy of the given bytes
+     * @param bytes the bytes
+     */
+    public ByteKey(byte[] bytes) {
+        this(Arrays.copyOf(bytes, bytes.length), 0, bytes.length);
+    }
+
+    private ByteKey(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+
+        int hash = 1;
+        for (int i = offset; i < offset + length; ++i) {
+            hash = 31 * hash + bytes[i];
+        }
+        this.hash = hash;
+    }
+
+    /**
+     * Create a key with a copy of a range of the given bytes
+     * @param bytes the bytes
+     * @param offset the index of the first byte
+     * @param length the number of bytes
+     * @return the key
+     */
+    public static ByteKey copyOf(byte[] bytes, int offset, int length) {
+        return new ByteKey(Arrays.copyOfRange(bytes, offset, offset + length), 0, length);
+    }
+
+    /**
+     * Create a key over a range of the given bytes, without copying them
+     * Only for lookups: the key must not be stored, as the bytes may change afterwards
+     * @param bytes the bytes
+     * @param offset the index of the first byte
+     * @param length the number of bytes
+     * @return the key
+     */
+    public static ByteKey view(byte[] bytes, int offset, int length) {
+        return new ByteKey(bytes, offset, length);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(bytes, offset, offset + length);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ByteKey byteKey = (ByteKey) o;
+
+        if (hash != byteKey.hash || length != byteKey.length) return false;
+        for (int i = 0; i < length; ++i) {
+            if (bytes[offset + i] != byteKey.bytes[byteKey.offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+}
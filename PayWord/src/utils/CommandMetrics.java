@@ -0,0 +1,36 @@
+package utils;
+
+
+/**
+ * The OperationMetrics of every command a server handles, found by command without allocating
+ */
+public class CommandMetrics {
+
+    private final int[] commandIDs;
+    private final OperationMetrics[] metrics;
+    //the commands that are not in the protocol, together
+    private final OperationMetrics unknown;
+
+    /**
+     * @param registry where the metrics are published
+     * @param server the name of the server, e.g. broker or vendor
+     */
+    CommandMetrics(Metrics registry, String server) {
+        this.commandIDs = Constants.CommunicationProtocol.COMMANDS.clone();
+        this.metrics = new OperationMetrics[commandIDs.length];
+        for (int i = 0; i < commandIDs.length; ++i) {
+            metrics[i] = registry.getCommandMetrics(server, Constants.CommunicationProtocol.getName(commandIDs[i]));
+        }
+        this.unknown = registry.getCommandMetrics(server, "UNKNOWN");
+    }
+
+    public OperationMetrics get(int commandID) {
+        for (int i = 0; i < commandIDs.length; ++i) {
+            if (commandIDs[i] == commandID)
+                return metrics[i];
+        }
+
+        return unknown;
+    }
+
+}
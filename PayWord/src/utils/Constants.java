@@ -10,11 +10,34 @@ public class Constants {
 
     public static final int IDENTITY_LENGTH = 128;
     public static final int HASH_LENGTH = 20;
+    public static final int PAYMENT_LENGTH = 28;
     public static final int UNSIGNED_COMMIT_LENGTH = 892;
     public static final int SIGNED_COMMIT_LENGTH = 1020;
+    public static final int MAX_MESSAGE_LENGTH = 64 * 1024 * 1024;
 
     public static final String LOCALHOST = "localhost";
 
+    public static final String LEDGER_FILE_NAME = "broker.ledger";
+    public static final String REDEEMED_ROOTS_FILE_NAME = "broker.roots";
+    public static final long REDEEMED_ROOTS_CAPACITY = 1 << 20;
+
+    public static final int REDEEM_BATCH_SIZE = 4096;
+    public static final int REDEEM_PIPELINE_QUEUE_LENGTH = 1024;
+
+    public static final int VENDOR_MAX_SESSIONS = 20000;
+    public static final int CERTIFICATE_CACHE_SIZE = 100000;
+    public static final long CERTIFICATE_RENEWAL_MARGIN_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    public static final int PUBLIC_KEY_CACHE_SIZE = 100000;
+    public static final long SESSION_IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    public static final int HASH_CHAIN_LENGTH = 10000;
+    public static final int MAX_PAYWORDS_PER_PAYMENT = 1000;
+    public static final int PAYMENT_WINDOW = 64;
+    public static final int MAX_PAYMENT_ATTEMPTS = 3;
+    public static final int HASH_CHAIN_POOL_MIN_SIZE = 6;
+    public static final int HASH_CHAIN_POOL_MAX_SIZE = 3000;
+    public static final long HASH_CHAIN_POOL_HORIZON_MILLIS = 2000;
+
     public static class CommunicationProtocol {
         public static final int END_COMMUNICATION = -1;
         public static final int OK = 1;
@@ -26,6 +49,37 @@ public class Constants {
         public static final int MAKE_PAYMENT = 11111;
         public static final int COMMIT = 111111;
         public static final int REDEEM = 1111111;
+        public static final int REDEEM_BATCH = 11111111;
+        public static final int PAY_N = 111111111;
+
+        //the commands, without END_COMMUNICATION
+        public static final int[] COMMANDS = {USER_REGISTER_TO_BROKER, VENDOR_REGISTER_TO_BROKER, GET_IDENTITY,
+                MAKE_PAYMENT, COMMIT, REDEEM, REDEEM_BATCH, PAY_N};
+
+        public static String getName(int commandID) {
+            switch (commandID) {
+                case END_COMMUNICATION:
+                    return "END_COMMUNICATION";
+                case USER_REGISTER_TO_BROKER:
+                    return "USER_REGISTER_TO_BROKER";
+                case VENDOR_REGISTER_TO_BROKER:
+                    return "VENDOR_REGISTER_TO_BROKER";
+                case GET_IDENTITY:
+                    return "GET_IDENTITY";
+                case MAKE_PAYMENT:
+                    return "MAKE_PAYMENT";
+                case COMMIT:
+                    return "COMMIT";
+                case REDEEM:
+                    return "REDEEM";
+                case REDEEM_BATCH:
+                    return "REDEEM_BATCH";
+                case PAY_N:
+                    return "PAY_N";
+                default:
+                    return "UNKNOWN";
+            }
+        }
     }
 
     public static class PaywordValue {
@@ -1,18 +1,53 @@
 package utils;
 
 import java.security.*;
-import java.util.Random;
 
 
+/**
+ * The hash, signature and random number functions of the scheme
+ * Every thread reuses its own SHA-1 digest, SHA1WithRSA signature and SecureRandom, instead of looking up a provider
+ * for every call; the hash functions that write into a given buffer don't allocate anything
+ */
 public class Crypto {
 
+    private static final OperationMetrics signatureVerifyMetrics = Metrics.getInstance().getOperationMetrics(Metrics.SIGNATURE_VERIFY);
+
+    private static final ThreadLocal<MessageDigest> messageDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<Signature> signature = new ThreadLocal<Signature>() {
+        @Override
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance("SHA1WithRSA");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<SecureRandom> secureRandom = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
     public static KeyPair getRSAKeyPair() {
         KeyPairGenerator keyPairGenerator = null;
         KeyPair keyPair = null;
 
         try {
             keyPairGenerator = KeyPairGenerator.getInstance("RSA");
-            keyPairGenerator.initialize(Constants.KEY_NO_OF_BITS);
+            keyPairGenerator.initialize(Constants.KEY_NO_OF_BITS, secureRandom.get());
 
             keyPair = keyPairGenerator.genKeyPair();
         } catch (NoSuchAlgorithmException e) {
@@ -23,22 +58,117 @@ public class Crypto {
     }
 
     public static byte[] hashMessage(byte[] message) {
-        byte[] hash = null;
+        return hashMessage(message, 0, message.length);
+    }
+
+    /**
+     * Hash a range of bytes
+     * @param message the bytes
+     * @param offset the index of the first byte to hash
+     * @param length the number of bytes to hash
+     * @return the hash (HASH_LENGTH bytes)
+     */
+    public static byte[] hashMessage(byte[] message, int offset, int length) {
+        MessageDigest messageDigest = Crypto.messageDigest.get();
+        messageDigest.update(message, offset, length);
+        return messageDigest.digest();
+    }
+
+    /**
+     * Hash a range of bytes into the given buffer, without allocating
+     * The output may overlap the input
+     * @param input the bytes to hash
+     * @param inputOffset the index of the first byte to hash
+     * @param inputLength the number of bytes to hash
+     * @param output where to write the hash
+     * @param outputOffset the index where the HASH_LENGTH bytes of the hash are written
+     */
+    public static void hashInto(byte[] input, int inputOffset, int inputLength, byte[] output, int outputOffset) {
+        MessageDigest messageDigest = Crypto.messageDigest.get();
+        messageDigest.update(input, inputOffset, inputLength);
         try {
-            MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
-            hash = messageDigest.digest(message);
-        } catch (NoSuchAlgorithmException e) {
+            messageDigest.digest(output, outputOffset, Constants.HASH_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Replace a hash with the hash applied n more times to it, without allocating
+     * @param hash the buffer with the hash
+     * @param offset the index of the HASH_LENGTH bytes of the hash
+     * @param n the number of times the hash function is applied
+     */
+    public static void hashIterated(byte[] hash, int offset, int n) {
+        MessageDigest messageDigest = Crypto.messageDigest.get();
+        try {
+            for (int i = 0; i < n; ++i) {
+                messageDigest.update(hash, offset, Constants.HASH_LENGTH);
+                messageDigest.digest(hash, offset, Constants.HASH_LENGTH);
+            }
+        } catch (DigestException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Sign a message with SHA1WithRSA
+     * @param privateKey the key of the signer
+     * @param message the message
+     * @return the signature, or null if the message could not be signed
+     */
+    public static byte[] sign(PrivateKey privateKey, byte[] message) {
+        Signature signature = Crypto.signature.get();
+        try {
+            signature.initSign(privateKey, secureRandom.get());
+            signature.update(message);
+            return signature.sign();
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+        } catch (SignatureException e) {
             e.printStackTrace();
         }
 
-        return hash;
+        return null;
+    }
+
+    /**
+     * Check a SHA1WithRSA signature
+     * @param publicKey the key of the signer
+     * @param message the signed bytes
+     * @param offset the index of the first signed byte
+     * @param length the number of signed bytes
+     * @param signedHash the bytes with the signature
+     * @param signedHashOffset the index of the first byte of the signature
+     * @param signedHashLength the length of the signature
+     * @return true if the signature is valid, false otherwise
+     */
+    public static boolean verify(PublicKey publicKey, byte[] message, int offset, int length,
+                                 byte[] signedHash, int signedHashOffset, int signedHashLength) {
+        if (publicKey == null)
+            return false;
+
+        long start = System.nanoTime();
+        Signature signature = Crypto.signature.get();
+        try {
+            signature.initVerify(publicKey);
+            signature.update(message, offset, length);
+            boolean result = signature.verify(signedHash, signedHashOffset, signedHashLength);
+            signatureVerifyMetrics.record(start, result);
+            return result;
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+        } catch (SignatureException e) {
+            e.printStackTrace();
+        }
+
+        signatureVerifyMetrics.recordError(start);
+        return false;
     }
 
     public static byte[] getSecret(int noOfBytes) {
         byte[] secret = new byte[noOfBytes];
-
-        Random random = new Random();
-        random.nextBytes(secret);
+        secureRandom.get().nextBytes(secret);
 
         return secret;
     }
@@ -0,0 +1,147 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+
+/**
+ * The messages of the protocol over a blocking socket, for the clients and the thread per connection servers
+ * A command is framed as one message: the command, the payload length and the payload. The message is put together in
+ * a reused buffer and written with a single call, so it leaves in one segment instead of one per field; Nagle is
+ * disabled, since nothing else would be coalesced with it. The reads are buffered and always read a whole field, never
+ * part of it
+ */
+public class FramedTransport {
+
+    private static final int HEADER_LENGTH = 2 * Constants.INT_NO_OF_BYTES;
+    private static final int SEND_BUFFER_LENGTH = 4096;
+
+    private final Socket socket;
+    private final DataInputStream input;
+    private final OutputStream output;
+
+    //the message being written, grown for large messages
+    private ByteBuffer sendBuffer;
+
+    /**
+     * @param socket a connected socket
+     * @throws IOException if the socket is closed
+     */
+    public FramedTransport(Socket socket) throws IOException {
+        this.socket = socket;
+        this.socket.setTcpNoDelay(true);
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.output = socket.getOutputStream();
+        this.sendBuffer = ByteBuffer.allocate(SEND_BUFFER_LENGTH);
+    }
+
+    /**
+     * Connect to a server
+     * @param hostname the host of the server
+     * @param port the port of the server
+     * @return the transport of the new connection
+     * @throws IOException if the connection fails
+     */
+    public static FramedTransport connect(String hostname, int port) throws IOException {
+        return new FramedTransport(new Socket(InetAddress.getByName(hostname), port));
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Send a command without payload
+     * @param commandID the command
+     */
+    public void send(int commandID) throws IOException {
+        ByteBuffer buffer = getSendBuffer(Constants.INT_NO_OF_BYTES);
+        buffer.putInt(commandID);
+        flush(buffer);
+    }
+
+    /**
+     * Send a command with its payload, as one message
+     * @param commandID the command
+     * @param payload the payload
+     */
+    public void send(int commandID, byte[] payload) throws IOException {
+        ByteBuffer buffer = getSendBuffer(HEADER_LENGTH + payload.length);
+        buffer.putInt(commandID).putInt(payload.length).put(payload);
+        flush(buffer);
+    }
+
+    /**
+     * Send the response to a command, as one message
+     * @param response the bytes of the response
+     */
+    public void sendResponse(byte[] response) throws IOException {
+        output.write(response);
+        output.flush();
+    }
+
+    private ByteBuffer getSendBuffer(int length) {
+        if (sendBuffer.capacity() < length) {
+            sendBuffer = ByteBuffer.allocate(Math.max(length, 2 * sendBuffer.capacity()));
+        }
+        sendBuffer.clear();
+        return sendBuffer;
+    }
+
+    private void flush(ByteBuffer buffer) throws IOException {
+        output.write(buffer.array(), 0, buffer.position());
+        output.flush();
+    }
+
+    /**
+     * Read an int: a command, a length or a response code
+     * @return the int
+     */
+    public int readInt() throws IOException {
+        return input.readInt();
+    }
+
+    /**
+     * Read exactly the given number of bytes
+     * @param length the number of bytes
+     * @return the bytes
+     */
+    public byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Read a payload: its length and its bytes
+     * @return the payload
+     * @throws IOException if the length is negative or above MAX_MESSAGE_LENGTH, or the connection fails
+     */
+    public byte[] readPayload() throws IOException {
+        return readPayload(Constants.MAX_MESSAGE_LENGTH);
+    }
+
+    /**
+     * Read a payload: its length and its bytes
+     * @param maxLength the maximum length of the payload
+     * @return the payload
+     * @throws IOException if the length is negative or above maxLength, or the connection fails
+     */
+    public byte[] readPayload(int maxLength) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > maxLength)
+            throw new IOException("bad payload length=" + length);
+
+        return readBytes(length);
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+}
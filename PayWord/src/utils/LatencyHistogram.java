@@ -0,0 +1,112 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A histogram of durations in nanoseconds that any number of threads can record into without locking
+ * The buckets are log-linear: every power of 2 is split in SUB_BUCKETS buckets, so a percentile is known within 1/8 of
+ * its value whatever the scale, from nanoseconds to hours, in a fixed array of counters
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NO_OF_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NO_OF_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        buckets.incrementAndGet(getBucket(nanos));
+        count.increment();
+        sum.add(nanos);
+
+        long currentMax;
+        while (nanos > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, nanos))
+                break;
+        }
+    }
+
+    private static int getBucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) | (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @param bucket the index of a bucket
+     * @return the largest value counted in the bucket
+     */
+    private static long getUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long subBucket = SUB_BUCKETS | (bucket & (SUB_BUCKETS - 1));
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public double getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * The value under which the given fraction of the durations are, read from the buckets while they may still be
+     * recorded into
+     * @param fraction the fraction of the durations, e.g. 0.99
+     * @return the upper bound of the bucket with the percentile, at most the largest duration; 0 if nothing was recorded
+     */
+    public long getPercentileNanos(double fraction) {
+        long[] counts = new long[NO_OF_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < NO_OF_BUCKETS; ++i) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < NO_OF_BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(getUpperBound(i), max.get());
+        }
+
+        return max.get();
+    }
+
+    /**
+     * Forget the durations recorded so far; durations recorded at the same time may be half counted
+     */
+    public void reset() {
+        for (int i = 0; i < NO_OF_BUCKETS; ++i)
+            buckets.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+}
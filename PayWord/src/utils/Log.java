@@ -0,0 +1,158 @@
+package utils;
+
+import java.util.Arrays;
+
+
+/**
+ * The logging of the whole process, in place of System.out.println
+ * The level is read once from the system property payword.log.level (OFF, ERROR, WARN, INFO, DEBUG, TRACE; INFO by
+ * default), so the checks are constants the JIT removes: a call below the level costs nothing but its arguments
+ * The messages are built lazily: the arguments replace the {} of the format on the thread of the AsyncAppender, not
+ * on the thread that logs, and a byte[] argument is only turned into a String there. Logging never blocks the caller:
+ * when the appender is behind, the message is dropped and counted
+ * Guard a call with an *_ENABLED check when computing its arguments is expensive
+ */
+public final class Log {
+
+    public static final int OFF = -1;
+    public static final int ERROR = 0;
+    public static final int WARN = 1;
+    public static final int INFO = 2;
+    public static final int DEBUG = 3;
+    public static final int TRACE = 4;
+
+    public static final int LEVEL = parseLevel(System.getProperty("payword.log.level", "INFO"));
+
+    public static final boolean ERROR_ENABLED = LEVEL >= ERROR;
+    public static final boolean WARN_ENABLED = LEVEL >= WARN;
+    public static final boolean INFO_ENABLED = LEVEL >= INFO;
+    public static final boolean DEBUG_ENABLED = LEVEL >= DEBUG;
+    public static final boolean TRACE_ENABLED = LEVEL >= TRACE;
+
+    private static final AsyncAppender appender = new AsyncAppender(Integer.getInteger("payword.log.buffer", 8192));
+
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+
+    private Log() {
+    }
+
+    private static int parseLevel(String level) {
+        switch (level.toUpperCase()) {
+            case "OFF":
+                return OFF;
+            case "ERROR":
+                return ERROR;
+            case "WARN":
+                return WARN;
+            case "DEBUG":
+                return DEBUG;
+            case "TRACE":
+                return TRACE;
+            case "INFO":
+            default:
+                return INFO;
+        }
+    }
+
+    public static void error(String format, Object... arguments) {
+        if (ERROR_ENABLED)
+            appender.append(ERROR, format, arguments, null);
+    }
+
+    public static void error(String message, Throwable throwable) {
+        if (ERROR_ENABLED)
+            appender.append(ERROR, message, NO_ARGUMENTS, throwable);
+    }
+
+    public static void warn(String format, Object... arguments) {
+        if (WARN_ENABLED)
+            appender.append(WARN, format, arguments, null);
+    }
+
+    public static void info(String format) {
+        if (INFO_ENABLED)
+            appender.append(INFO, format, NO_ARGUMENTS, null);
+    }
+
+    public static void info(String format, Object argument) {
+        if (INFO_ENABLED)
+            appender.append(INFO, format, new Object[]{argument}, null);
+    }
+
+    public static void info(String format, Object... arguments) {
+        if (INFO_ENABLED)
+            appender.append(INFO, format, arguments, null);
+    }
+
+    public static void debug(String format) {
+        if (DEBUG_ENABLED)
+            appender.append(DEBUG, format, NO_ARGUMENTS, null);
+    }
+
+    public static void debug(String format, Object argument) {
+        if (DEBUG_ENABLED)
+            appender.append(DEBUG, format, new Object[]{argument}, null);
+    }
+
+    public static void debug(String format, Object argument1, Object argument2) {
+        if (DEBUG_ENABLED)
+            appender.append(DEBUG, format, new Object[]{argument1, argument2}, null);
+    }
+
+    public static void debug(String format, Object... arguments) {
+        if (DEBUG_ENABLED)
+            appender.append(DEBUG, format, arguments, null);
+    }
+
+    public static void trace(String format, Object... arguments) {
+        if (TRACE_ENABLED)
+            appender.append(TRACE, format, arguments, null);
+    }
+
+    /**
+     * Wait until the messages logged so far are written
+     */
+    public static void flush() {
+        appender.flush();
+    }
+
+    /**
+     * @return the number of messages dropped because the appender was behind
+     */
+    public static long getDropped() {
+        return appender.getDropped();
+    }
+
+    /**
+     * Build a message: every {} of the format is replaced by the next argument
+     * @param format the format
+     * @param arguments the arguments
+     * @return the message
+     */
+    static String format(String format, Object[] arguments) {
+        if (arguments.length == 0)
+            return format;
+
+        StringBuilder builder = new StringBuilder(format.length() + 16 * arguments.length);
+        int start = 0;
+        for (Object argument : arguments) {
+            int index = format.indexOf("{}", start);
+            if (index < 0)
+                break;
+            builder.append(format, start, index).append(toString(argument));
+            start = index + 2;
+        }
+        builder.append(format, start, format.length());
+
+        return builder.toString();
+    }
+
+    private static String toString(Object argument) {
+        if (argument instanceof byte[])
+            return Arrays.toString((byte[]) argument);
+        if (argument instanceof Object[])
+            return Arrays.deepToString((Object[]) argument);
+        return String.valueOf(argument);
+    }
+
+}
@@ -0,0 +1,139 @@
+package utils;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The metrics of the whole process: an OperationMetrics for every command of the servers and every crypto step
+ * Each one is published as a JMX MBean (payword:type=Command,server=...,name=... and payword:type=Operation,name=...),
+ * and this registry as payword:type=Metrics, whose dump operation writes the report of all of them to a file
+ * The metrics are created once, at startup; the request paths only record into them
+ */
+public class Metrics implements MetricsMBean {
+
+    public static final String SIGNATURE_VERIFY = "signature-verify";
+    public static final String KEY_DECODE = "key-decode";
+    public static final String CERTIFICATE_SIGN = "certificate-sign";
+    public static final String REDEEM_CHAIN_VERIFY = "redeem-chain-verify";
+    public static final String PAYMENT_CHAIN_VERIFY = "payment-chain-verify";
+
+    private static Metrics instance;
+
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+            instance.register("payword:type=Metrics", instance);
+        }
+
+        return instance;
+    }
+
+    private final MBeanServer mBeanServer;
+
+    //by JMX name
+    private final Map<String, OperationMetrics> operations = new HashMap<>();
+    private final List<OperationMetrics> operationList = new ArrayList<>();
+    private final Map<String, CommandMetrics> servers = new HashMap<>();
+
+    private Metrics() {
+        this.mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    }
+
+    private void register(String objectName, Object mBean) {
+        try {
+            mBeanServer.registerMBean(mBean, new ObjectName(objectName));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized OperationMetrics getOperationMetrics(String objectName, String name) {
+        OperationMetrics operationMetrics = operations.get(objectName);
+        if (operationMetrics == null) {
+            operationMetrics = new OperationMetrics(name);
+            operations.put(objectName, operationMetrics);
+            operationList.add(operationMetrics);
+            register(objectName, operationMetrics);
+        }
+
+        return operationMetrics;
+    }
+
+    /**
+     * @param name the name of the operation, e.g. SIGNATURE_VERIFY
+     * @return the metrics of the operation, created the first time
+     */
+    public OperationMetrics getOperationMetrics(String name) {
+        return getOperationMetrics("payword:type=Operation,name=" + name, name);
+    }
+
+    OperationMetrics getCommandMetrics(String server, String commandName) {
+        return getOperationMetrics("payword:type=Command,server=" + server + ",name=" + commandName, server + "." + commandName);
+    }
+
+    /**
+     * @param server the name of the server, e.g. broker or vendor
+     * @return the metrics of the commands of the server, created the first time
+     */
+    public synchronized CommandMetrics getCommandMetrics(String server) {
+        CommandMetrics commandMetrics = servers.get(server);
+        if (commandMetrics == null) {
+            commandMetrics = new CommandMetrics(this, server);
+            servers.put(server, commandMetrics);
+        }
+
+        return commandMetrics;
+    }
+
+    @Override
+    public synchronized String getReport() {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (OperationMetrics operationMetrics : operationList) {
+            if (operationMetrics.getCount() != 0)
+                stringBuilder.append(operationMetrics).append(System.lineSeparator());
+        }
+        stringBuilder.append("log: dropped=").append(getLogDroppedCount()).append(System.lineSeparator());
+
+        return stringBuilder.toString();
+    }
+
+    @Override
+    public long getLogDroppedCount() {
+        return Log.getDropped();
+    }
+
+    /**
+     * Write the report to a file, replacing it
+     * @param fileName the path of the file
+     */
+    @Override
+    public void dump(String fileName) throws IOException {
+        try (OutputStream outputStream = new FileOutputStream(fileName)) {
+            outputStream.write(getReport().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (OperationMetrics operationMetrics : operationList) {
+            operationMetrics.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getReport();
+    }
+
+}
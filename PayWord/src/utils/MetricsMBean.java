@@ -0,0 +1,19 @@
+package utils;
+
+import java.io.IOException;
+
+
+/**
+ * The JMX view of the Metrics of the process: the report of every operation, and its dump to a file
+ */
+public interface MetricsMBean {
+
+    String getReport();
+
+    long getLogDroppedCount();
+
+    void dump(String fileName) throws IOException;
+
+    void reset();
+
+}
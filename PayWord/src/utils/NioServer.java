@@ -0,0 +1,522 @@
+package utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Non-blocking server for the CommunicationProtocol: one selector thread reads and writes all the connections
+ * The messages keep the format used by the blocking servers:
+ *  - 4 bytes for the command
+ *  - for the commands with a payload: 4 bytes for the length of the payload and the payload
+ * The cheap commands are handled on the selector thread; the expensive ones (RSA, hash chains) go to a bounded
+ * pool of workers. A connection has at most one command in progress, so the responses keep the order of the requests
+ * The memory of a connection is bounded: a payload longer than the handler allows for its command closes the
+ * connection, the buffer for a payload grows only as its bytes arrive, and no more requests are read while
+ * MAX_PENDING_OUTPUT_BYTES of responses wait to be sent. A client that doesn't read its responses for
+ * WRITE_STALL_TIMEOUT_MILLIS is disconnected
+ * Optionally, the connections without traffic are closed after a timeout, and no more connections are accepted while
+ * the number of sessions is at its maximum (the new clients wait in the backlog instead of being refused)
+ */
+public class NioServer implements Runnable {
+
+    private static final int NO_COMMAND = Integer.MIN_VALUE;
+    private static final int INITIAL_BUFFER_LENGTH = 2048;
+    private static final int MAX_PENDING_OUTPUT_BYTES = 1 << 20;
+    private static final long WRITE_STALL_TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * What the server does with the messages it receives
+     */
+    public interface Handler {
+
+        /**
+         * @param commandID the command
+         * @return true if the command is followed by the length of a payload and the payload
+         */
+        boolean hasPayload(int commandID);
+
+        /**
+         * @param commandID a command with a payload
+         * @return the maximum length of its payload; a longer one closes the connection
+         */
+        int getMaxPayloadLength(int commandID);
+
+        /**
+         * @param commandID the command
+         * @return true if the command should be handled by a worker instead of the selector thread
+         */
+        boolean isExpensive(int commandID);
+
+        /**
+         * Handle a command
+         * @param session the state of the connection
+         * @param commandID the command
+         * @param payload the payload, or null if the command has none
+         * @return the bytes to send back (can be empty)
+         */
+        byte[] handle(Session session, int commandID, byte[] payload);
+    }
+
+    /**
+     * The state kept for one connection
+     */
+    public static class Session {
+
+        private final int sessionID;
+        private Object attachment;
+
+        Session(int sessionID) {
+            this.sessionID = sessionID;
+        }
+
+        public int getSessionID() {
+            return sessionID;
+        }
+
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+    }
+
+    private final int port;
+    private final int backlog;
+    private final Handler handler;
+    private final ThreadPoolExecutor workers;
+
+    private final ConcurrentLinkedQueue<Connection> completed;
+    private final ArrayDeque<Connection> rejected;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SelectionKey acceptKey;
+    private volatile boolean running;
+    private int connectionsCount;
+
+    private long idleTimeout;
+    private int maxSessions;
+    private int openSessions;
+    private long lastReapTime;
+
+    /**
+     * @param port the port to listen on
+     * @param backlog the number of connections that can wait to be accepted
+     * @param handler what to do with the messages
+     * @param noOfWorkers the number of threads for the expensive commands
+     * @param workerQueueLength the number of expensive commands that can wait for a worker
+     */
+    public NioServer(int port, int backlog, Handler handler, int noOfWorkers, int workerQueueLength) {
+        this.port = port;
+        this.backlog = backlog;
+        this.handler = handler;
+        this.workers = new ThreadPoolExecutor(noOfWorkers, noOfWorkers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(workerQueueLength), new DaemonThreadFactory("nio-worker-" + port));
+        this.completed = new ConcurrentLinkedQueue<>();
+        this.rejected = new ArrayDeque<>();
+    }
+
+    /**
+     * Close the connections without any traffic for the given time; must be set before the server runs
+     * @param idleTimeout the time in milliseconds, 0 to keep the connections open
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Stop accepting connections while the given number of sessions are open; must be set before the server runs
+     * @param maxSessions the number of sessions, 0 for no limit
+     */
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    public int getOpenSessions() {
+        return openSessions;
+    }
+
+    @Override
+    public void run() {
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port), backlog);
+            serverChannel.configureBlocking(false);
+            acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            running = true;
+            lastReapTime = System.currentTimeMillis();
+
+            while (running) {
+                //retry the commands refused by a full worker queue
+                selector.select(rejected.isEmpty() ? reapInterval() : 1);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable())
+                        read(connection);
+                    if (key.isValid() && key.isWritable())
+                        writeAndResume(connection);
+                }
+
+                Connection connection;
+                while ((connection = completed.poll()) != null) {
+                    complete(connection);
+                }
+
+                for (int i = rejected.size(); i > 0; --i) {
+                    connection = rejected.poll();
+                    submit(connection);
+                }
+
+                if (System.currentTimeMillis() - lastReapTime >= reapInterval())
+                    reapIdleConnections();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            close();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        if (selector != null)
+            selector.wakeup();
+    }
+
+    private void close() {
+        workers.shutdownNow();
+        try {
+            if (selector != null) {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private long reapInterval() {
+        long timeout = idleTimeout > 0 ? Math.min(idleTimeout, WRITE_STALL_TIMEOUT_MILLIS) : WRITE_STALL_TIMEOUT_MILLIS;
+        return Math.max(timeout / 4, 1);
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((maxSessions == 0 || openSessions < maxSessions) && (channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            Connection connection = new Connection(channel, new Session(++connectionsCount));
+            connection.lastActivityTime = System.currentTimeMillis();
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            ++openSessions;
+        }
+
+        if (maxSessions != 0 && openSessions >= maxSessions) {
+            Log.debug("NioServer.accept: openSessions={} => stop accepting connections", openSessions);
+            acceptKey.interestOps(0);
+        }
+    }
+
+    /**
+     * Close the connections whose responses were not read for WRITE_STALL_TIMEOUT_MILLIS, and the ones that are not
+     * waiting for a worker and had no traffic for idleTimeout milliseconds
+     */
+    private void reapIdleConnections() {
+        long now = System.currentTimeMillis();
+        lastReapTime = now;
+
+        int count = 0;
+        int stalled = 0;
+        for (SelectionKey key : selector.keys()) {
+            if (key == acceptKey || !key.isValid())
+                continue;
+
+            Connection connection = (Connection) key.attachment();
+            if (connection.outputBytes != 0 && now - connection.lastWriteTime >= WRITE_STALL_TIMEOUT_MILLIS) {
+                closeConnection(connection);
+                ++stalled;
+            } else if (idleTimeout > 0 && !connection.busy && now - connection.lastActivityTime >= idleTimeout) {
+                closeConnection(connection);
+                ++count;
+            }
+        }
+
+        if (stalled != 0)
+            Log.warn("NioServer.reapIdleConnections: closed={} clients not reading their responses", stalled);
+        if (count != 0)
+            Log.debug("NioServer.reapIdleConnections: closed={} openSessions={}", count, openSessions);
+    }
+
+    private void read(Connection connection) {
+        try {
+            int count = connection.channel.read(connection.input);
+            if (count < 0) {
+                closeConnection(connection);
+                return;
+            }
+            connection.lastActivityTime = System.currentTimeMillis();
+        } catch (IOException e) {
+            closeConnection(connection);
+            return;
+        }
+
+        processInput(connection);
+    }
+
+    /**
+     * Take the complete messages out of the input buffer, one at a time, as long as no command is in progress
+     */
+    private void processInput(Connection connection) {
+        ByteBuffer input = connection.input;
+        input.flip();
+        try {
+            while (!connection.busy && !connection.closing && connection.outputBytes < MAX_PENDING_OUTPUT_BYTES) {
+                if (connection.commandID == NO_COMMAND) {
+                    if (input.remaining() < Constants.INT_NO_OF_BYTES)
+                        break;
+
+                    connection.commandID = input.getInt();
+                    if (connection.commandID == Constants.CommunicationProtocol.END_COMMUNICATION) {
+                        connection.closing = true;
+                        break;
+                    }
+
+                    if (!handler.hasPayload(connection.commandID)) {
+                        int commandID = connection.commandID;
+                        connection.commandID = NO_COMMAND;
+                        dispatch(connection, commandID, null);
+                        continue;
+                    }
+                }
+
+                if (connection.payloadLength < 0) {
+                    if (input.remaining() < Constants.INT_NO_OF_BYTES)
+                        break;
+
+                    connection.payloadLength = input.getInt();
+                    if (connection.payloadLength < 0 || connection.payloadLength > handler.getMaxPayloadLength(connection.commandID)) {
+                        Log.warn("NioServer.processInput: bad payload length={} for commandID={}! => close the connection",
+                                connection.payloadLength, connection.commandID);
+                        closeConnection(connection);
+                        return;
+                    }
+                }
+
+                if (input.remaining() < connection.payloadLength)
+                    break;
+
+                byte[] payload = new byte[connection.payloadLength];
+                input.get(payload);
+
+                int commandID = connection.commandID;
+                connection.commandID = NO_COMMAND;
+                connection.payloadLength = -1;
+                dispatch(connection, commandID, payload);
+            }
+        } finally {
+            input.compact();
+        }
+
+        //make room for more of the payload that is expected, as its bytes arrive
+        if (!input.hasRemaining() && connection.payloadLength > input.position()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(connection.payloadLength + 2 * Constants.INT_NO_OF_BYTES, 2 * input.capacity()));
+            input.flip();
+            bigger.put(input);
+            connection.input = bigger;
+        }
+
+        updateInterest(connection);
+    }
+
+    private void dispatch(Connection connection, int commandID, byte[] payload) {
+        if (handler.isExpensive(commandID)) {
+            connection.busy = true;
+            connection.pendingCommandID = commandID;
+            connection.pendingPayload = payload;
+            submit(connection);
+        } else {
+            try {
+                enqueue(connection, handler.handle(connection.session, commandID, payload));
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                closeConnection(connection);
+            }
+        }
+    }
+
+    private void submit(final Connection connection) {
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        connection.response = handler.handle(connection.session, connection.pendingCommandID, connection.pendingPayload);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        connection.failed = true;
+                    }
+                    completed.add(connection);
+                    selector.wakeup();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //all the workers are busy and the queue is full: don't read from this connection until it is accepted
+            rejected.add(connection);
+        }
+    }
+
+    private void complete(Connection connection) {
+        connection.busy = false;
+        connection.pendingPayload = null;
+        connection.lastActivityTime = System.currentTimeMillis();
+        if (connection.failed) {
+            closeConnection(connection);
+            return;
+        }
+
+        enqueue(connection, connection.response);
+        connection.response = null;
+        processInput(connection);
+    }
+
+    private void enqueue(Connection connection, byte[] response) {
+        if (response != null && response.length != 0) {
+            if (connection.output.isEmpty())
+                connection.lastWriteTime = System.currentTimeMillis();
+            connection.output.add(ByteBuffer.wrap(response));
+            connection.outputBytes += response.length;
+        }
+        write(connection);
+    }
+
+    private void write(Connection connection) {
+        try {
+            while (!connection.output.isEmpty()) {
+                ByteBuffer buffer = connection.output.peek();
+                int count = connection.channel.write(buffer);
+                if (count > 0) {
+                    connection.outputBytes -= count;
+                    connection.lastWriteTime = System.currentTimeMillis();
+                }
+                if (buffer.hasRemaining())
+                    break;
+                connection.output.poll();
+            }
+        } catch (IOException e) {
+            closeConnection(connection);
+            return;
+        }
+
+        updateInterest(connection);
+    }
+
+    /**
+     * Send the pending responses, then take the requests that were left in the input while too many responses waited
+     */
+    private void writeAndResume(Connection connection) {
+        boolean blocked = connection.outputBytes >= MAX_PENDING_OUTPUT_BYTES;
+        write(connection);
+        if (blocked && connection.key.isValid() && connection.outputBytes < MAX_PENDING_OUTPUT_BYTES)
+            processInput(connection);
+    }
+
+    private void updateInterest(Connection connection) {
+        if (!connection.key.isValid())
+            return;
+
+        if (connection.closing && connection.output.isEmpty() && !connection.busy) {
+            closeConnection(connection);
+            return;
+        }
+
+        int interest = 0;
+        if (!connection.busy && !connection.closing && connection.outputBytes < MAX_PENDING_OUTPUT_BYTES)
+            interest |= SelectionKey.OP_READ;
+        if (!connection.output.isEmpty())
+            interest |= SelectionKey.OP_WRITE;
+        connection.key.interestOps(interest);
+    }
+
+    private void closeConnection(Connection connection) {
+        connection.closing = true;
+        if (!connection.channel.isOpen())
+            return;
+
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        //there is room for one more session
+        if (--openSessions < maxSessions && acceptKey.isValid() && acceptKey.interestOps() == 0)
+            acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+    }
+
+
+    private static class Connection {
+
+        private final SocketChannel channel;
+        private final Session session;
+        private SelectionKey key;
+
+        private ByteBuffer input;
+        private final ArrayDeque<ByteBuffer> output;
+        private int outputBytes;
+        private long lastWriteTime;
+
+        private int commandID;
+        private int payloadLength;
+
+        private boolean busy;
+        private boolean closing;
+        private long lastActivityTime;
+        private int pendingCommandID;
+        private byte[] pendingPayload;
+        private volatile byte[] response;
+        private volatile boolean failed;
+
+        Connection(SocketChannel channel, Session session) {
+            this.channel = channel;
+            this.session = session;
+            this.input = ByteBuffer.allocate(INITIAL_BUFFER_LENGTH);
+            this.output = new ArrayDeque<>();
+            this.commandID = NO_COMMAND;
+            this.payloadLength = -1;
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+package utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * The counts and latencies of one operation: a command of the protocol or a step of its crypto
+ * The outcomes are the response codes of the protocol (OK, NOK, FRAUD) and errors, when the operation threw
+ * Recording is cheap enough for every request: striped counters and a lock-free LatencyHistogram
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+    private final String name;
+
+    private final LongAdder okCount = new LongAdder();
+    private final LongAdder nokCount = new LongAdder();
+    private final LongAdder fraudCount = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    public OperationMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Record an operation that ended now
+     * @param startNanos the System.nanoTime() when it started
+     * @param outcome OK, NOK or FRAUD of CommunicationProtocol
+     */
+    public void record(long startNanos, int outcome) {
+        latency.record(System.nanoTime() - startNanos);
+
+        switch (outcome) {
+            case Constants.CommunicationProtocol.OK:
+                okCount.increment();
+                break;
+            case Constants.CommunicationProtocol.FRAUD:
+                fraudCount.increment();
+                break;
+            default:
+                nokCount.increment();
+                break;
+        }
+    }
+
+    /**
+     * Record an operation that ended now
+     * @param startNanos the System.nanoTime() when it started
+     * @param result true for OK, false for NOK
+     */
+    public void record(long startNanos, boolean result) {
+        record(startNanos, result ? Constants.CommunicationProtocol.OK : Constants.CommunicationProtocol.NOK);
+    }
+
+    /**
+     * Record a command that ended now, with the outcome read from its response: a response that is only a code is OK,
+     * NOK or FRAUD, a longer one carries a result and is OK
+     * @param startNanos the System.nanoTime() when it started
+     * @param response the bytes of the response, or null if the command threw
+     */
+    public void recordResponse(long startNanos, byte[] response) {
+        if (response == null) {
+            recordError(startNanos);
+        } else if (response.length == Constants.INT_NO_OF_BYTES) {
+            int code = ((response[0] & 0xff) << 24) | ((response[1] & 0xff) << 16) | ((response[2] & 0xff) << 8) | (response[3] & 0xff);
+            record(startNanos, code);
+        } else {
+            record(startNanos, Constants.CommunicationProtocol.OK);
+        }
+    }
+
+    /**
+     * Record an operation that threw
+     * @param startNanos the System.nanoTime() when it started
+     */
+    public void recordError(long startNanos) {
+        latency.record(System.nanoTime() - startNanos);
+        errorCount.increment();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getOkCount() {
+        return okCount.sum();
+    }
+
+    @Override
+    public long getNokCount() {
+        return nokCount.sum();
+    }
+
+    @Override
+    public long getFraudCount() {
+        return fraudCount.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return latency.getMeanNanos() / 1000.0;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return latency.getPercentileNanos(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getP90Micros() {
+        return latency.getPercentileNanos(0.9) / 1000.0;
+    }
+
+    @Override
+    public double getP99Micros() {
+        return latency.getPercentileNanos(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Micros() {
+        return latency.getPercentileNanos(0.999) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return latency.getMaxNanos() / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        okCount.reset();
+        nokCount.reset();
+        fraudCount.reset();
+        errorCount.reset();
+        latency.reset();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": count=" + getCount()
+                + " ok=" + getOkCount()
+                + " nok=" + getNokCount()
+                + " fraud=" + getFraudCount()
+                + " errors=" + getErrorCount()
+                + " mean=" + String.format("%.1fus", getMeanMicros())
+                + " p50=" + String.format("%.1fus", getP50Micros())
+                + " p99=" + String.format("%.1fus", getP99Micros())
+                + " p999=" + String.format("%.1fus", getP999Micros())
+                + " max=" + String.format("%.1fus", getMaxMicros());
+    }
+
+}
@@ -0,0 +1,35 @@
+package utils;
+
+
+/**
+ * The JMX view of an OperationMetrics: the outcome counts and the latency percentiles, in microseconds
+ */
+public interface OperationMetricsMBean {
+
+    String getName();
+
+    long getCount();
+
+    long getOkCount();
+
+    long getNokCount();
+
+    long getFraudCount();
+
+    long getErrorCount();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP90Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+
+    void reset();
+
+}
@@ -0,0 +1,104 @@
+package utils;
+
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+
+/**
+ * The RSA public keys decoded from their X.509 encoding, shared by the whole process
+ * The same keys come again and again (in every commit, certificate and registration), so each one is decoded once
+ * The least recently used keys are evicted when the cache is full
+ */
+public class PublicKeyCache {
+
+    private static PublicKeyCache instance;
+
+    public static synchronized PublicKeyCache getInstance() {
+        if (instance == null) {
+            instance = new PublicKeyCache(Constants.PUBLIC_KEY_CACHE_SIZE);
+        }
+
+        return instance;
+    }
+
+    private final BoundedCache<ByteKey, PublicKey> publicKeys;
+    private final OperationMetrics keyDecodeMetrics = Metrics.getInstance().getOperationMetrics(Metrics.KEY_DECODE);
+
+    //a KeyFactory is not meant to be shared by threads; one for each thread avoids the provider lookup every time
+    private final ThreadLocal<KeyFactory> keyFactory = new ThreadLocal<KeyFactory>() {
+        @Override
+        protected KeyFactory initialValue() {
+            try {
+                return KeyFactory.getInstance("RSA");
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    };
+
+    /**
+     * @param maxSize the maximum number of keys kept
+     */
+    public PublicKeyCache(int maxSize) {
+        this.publicKeys = new BoundedCache<>(maxSize);
+    }
+
+    /**
+     * Get the public key with the given encoding
+     * @param encodedKey the X.509 encoding of the key
+     * @return the key, or null if the bytes are not a valid RSA public key
+     */
+    public PublicKey getPublicKey(byte[] encodedKey) {
+        return getPublicKey(encodedKey, 0, encodedKey.length);
+    }
+
+    /**
+     * Get the public key encoded in a range of bytes, without copying them if the key is already known
+     * @param bytes the bytes
+     * @param offset the index of the first byte of the X.509 encoding of the key
+     * @param length the length of the encoding
+     * @return the key, or null if the bytes are not a valid RSA public key
+     */
+    public PublicKey getPublicKey(byte[] bytes, int offset, int length) {
+        PublicKey publicKey = publicKeys.get(ByteKey.view(bytes, offset, length));
+        if (publicKey != null)
+            return publicKey;
+
+        long start = System.nanoTime();
+        byte[] encodedKey = Arrays.copyOfRange(bytes, offset, offset + length);
+        try {
+            publicKey = keyFactory.get().generatePublic(new X509EncodedKeySpec(encodedKey));
+        } catch (InvalidKeySpecException e) {
+            e.printStackTrace();
+            keyDecodeMetrics.recordError(start);
+            return null;
+        }
+        keyDecodeMetrics.record(start, true);
+
+        //a key never expires; it only leaves the cache when it is not used anymore
+        publicKeys.put(new ByteKey(encodedKey), publicKey, Long.MAX_VALUE);
+        return publicKey;
+    }
+
+    public int size() {
+        return publicKeys.size();
+    }
+
+    public long getHits() {
+        return publicKeys.getHits();
+    }
+
+    public long getMisses() {
+        return publicKeys.getMisses();
+    }
+
+    public double getHitRatio() {
+        return publicKeys.getHitRatio();
+    }
+
+}
@@ -0,0 +1,24 @@
+package utils;
+
+
+/**
+ * How a server handles its connections
+ *  - THREAD: a new platform thread for every connection
+ *  - VIRTUAL: a virtual thread for every connection (needs a JVM with virtual threads, otherwise THREAD is used)
+ *  - NIO: one selector thread for all the connections and a bounded pool of workers for the expensive commands
+ */
+public enum ServerMode {
+    THREAD,
+    VIRTUAL,
+    NIO;
+
+    public static ServerMode fromString(String mode) {
+        for (ServerMode serverMode : values()) {
+            if (serverMode.name().equalsIgnoreCase(mode))
+                return serverMode;
+        }
+
+        Log.warn("ServerMode.fromString: unknown mode {}! => use THREAD", mode);
+        return THREAD;
+    }
+}
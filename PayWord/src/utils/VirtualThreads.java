@@ -0,0 +1,26 @@
+package utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * Access to the virtual threads of the JVM, when it has them
+ * The sources are kept compatible with older JVMs, so the executor is looked up by reflection
+ */
+public class VirtualThreads {
+
+    /**
+     * Get an executor that starts a new virtual thread for each task
+     * @return the executor, or null if the JVM has no virtual threads
+     */
+    public static ExecutorService newPerTaskExecutor() {
+        try {
+            Method method = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+package broker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+
+public class LedgerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Write a journal of three records: open 1 and 2, then transfer 30 from 1 to 2
+     */
+    private File writeJournal(boolean groupCommit) throws IOException {
+        File file = folder.newFile();
+        Ledger ledger = new Ledger(file.getPath(), groupCommit);
+        assertEquals(0, ledger.replay(new AccountIndex()));
+        ledger.appendOpen(1, 100);
+        ledger.appendOpen(2, 0);
+        ledger.appendTransfer(1, 2, 30);
+        ledger.close();
+        return file;
+    }
+
+    private static long replay(File file, AccountIndex accounts) throws IOException {
+        Ledger ledger = new Ledger(file.getPath(), false);
+        try {
+            return ledger.replay(accounts);
+        } finally {
+            ledger.close();
+        }
+    }
+
+    private static void flipByte(File file, long position) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(position);
+            int value = randomAccessFile.read();
+            randomAccessFile.seek(position);
+            randomAccessFile.write(value ^ 0xff);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    @Test
+    public void replayRebuildsTheBalances() throws IOException {
+        for (boolean groupCommit : new boolean[]{false, true}) {
+            File file = writeJournal(groupCommit);
+            assertEquals(3 * Ledger.RECORD_LENGTH, file.length());
+
+            AccountIndex accounts = new AccountIndex();
+            assertEquals(3, replay(file, accounts));
+            assertEquals(70, accounts.get(1), 0);
+            assertEquals(30, accounts.get(2), 0);
+        }
+    }
+
+    @Test
+    public void appendAfterReplayContinuesTheSequence() throws IOException {
+        File file = writeJournal(true);
+
+        Ledger ledger = new Ledger(file.getPath(), true);
+        ledger.replay(new AccountIndex());
+        ledger.appendAdd(2, 5);
+        ledger.close();
+
+        AccountIndex accounts = new AccountIndex();
+        assertEquals(4, replay(file, accounts));
+        assertEquals(35, accounts.get(2), 0);
+    }
+
+    @Test
+    public void partialRecordAtTheEndIsCut() throws IOException {
+        File file = writeJournal(false);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(file.length());
+        randomAccessFile.write(new byte[Ledger.RECORD_LENGTH / 2]);
+        randomAccessFile.close();
+
+        AccountIndex accounts = new AccountIndex();
+        assertEquals(3, replay(file, accounts));
+        assertEquals(3 * Ledger.RECORD_LENGTH, file.length());
+        assertEquals(30, accounts.get(2), 0);
+    }
+
+    @Test
+    public void corruptedLastRecordIsCut() throws IOException {
+        File file = writeJournal(false);
+        flipByte(file, 2 * Ledger.RECORD_LENGTH + 20);
+
+        AccountIndex accounts = new AccountIndex();
+        assertEquals(2, replay(file, accounts));
+        assertEquals(2 * Ledger.RECORD_LENGTH, file.length());
+        assertEquals(100, accounts.get(1), 0);
+        assertEquals(0, accounts.get(2), 0);
+    }
+
+    @Test
+    public void corruptedRecordFollowedByValidOnesFails() throws IOException {
+        File file = writeJournal(false);
+        flipByte(file, Ledger.RECORD_LENGTH + 20);
+
+        AccountIndex accounts = new AccountIndex();
+        try {
+            replay(file, accounts);
+            fail("the journal is corrupted before its tail");
+        } catch (IOException e) {
+            //expected
+        }
+
+        //nothing applied, nothing cut
+        assertFalse(accounts.contains(1));
+        assertEquals(3 * Ledger.RECORD_LENGTH, file.length());
+    }
+
+    @Test
+    public void missingRecordFails() throws IOException {
+        File file = writeJournal(false);
+
+        //drop the second record: the third one follows the first
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        byte[] last = new byte[Ledger.RECORD_LENGTH];
+        randomAccessFile.seek(2 * Ledger.RECORD_LENGTH);
+        randomAccessFile.readFully(last);
+        randomAccessFile.seek(Ledger.RECORD_LENGTH);
+        randomAccessFile.write(last);
+        randomAccessFile.setLength(2 * Ledger.RECORD_LENGTH);
+        randomAccessFile.close();
+
+        try {
+            replay(file, new AccountIndex());
+            fail("a sequence number is missing");
+        } catch (IOException e) {
+            //expected
+        }
+        assertEquals(2 * Ledger.RECORD_LENGTH, file.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void appendBeforeReplayFails() throws IOException {
+        Ledger ledger = new Ledger(folder.newFile().getPath(), false);
+        try {
+            ledger.appendOpen(1, 100);
+        } finally {
+            ledger.close();
+        }
+    }
+
+}
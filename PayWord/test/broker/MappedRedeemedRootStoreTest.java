@@ -0,0 +1,199 @@
+package broker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import utils.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class MappedRedeemedRootStoreTest {
+
+    //a new file of this capacity has a single region of 100 slots
+    private static final int CAPACITY = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A root whose home is the given slot: the region comes from its first 4 bytes, the slot from the next 4
+     */
+    private static byte[] root(int homeSlot, int id) {
+        return ByteBuffer.allocate(Constants.HASH_LENGTH).putInt(0).putInt(homeSlot).putInt(id).array();
+    }
+
+    private static byte[] hash(int value) {
+        return ByteBuffer.allocate(Constants.HASH_LENGTH).putInt(value).array();
+    }
+
+    private String newPath() throws IOException {
+        File file = folder.newFile();
+        file.delete();
+        return file.getPath();
+    }
+
+    @Test
+    public void putGetAndAdvance() throws IOException {
+        MappedRedeemedRootStore store = new MappedRedeemedRootStore(newPath(), CAPACITY);
+        byte[] root = root(7, 1);
+
+        assertNull(store.get(root));
+        assertEquals(RedeemedRootStore.ADDED, store.putIfAbsent(root, hash(1), 4, hash(2), Long.MAX_VALUE));
+        assertEquals(RedeemedRootStore.ALREADY_REDEEMED, store.putIfAbsent(root, hash(3), 5, hash(4), Long.MAX_VALUE));
+
+        RedeemState redeemState = store.get(root);
+        assertArrayEquals(hash(1), redeemState.getCommitDigest());
+        assertEquals(4, redeemState.getLastIndex());
+        assertArrayEquals(hash(2), redeemState.getLastPayword().getBytes());
+
+        //only from the checkpoint that was read
+        assertFalse(store.advance(root, 3, 9, hash(5)));
+        assertTrue(store.advance(root, 4, 9, hash(5)));
+        assertEquals(9, store.get(root).getLastIndex());
+        assertArrayEquals(hash(5), store.get(root).getLastPayword().getBytes());
+        assertEquals(1, store.size());
+
+        store.close();
+    }
+
+    @Test
+    public void reopenKeepsTheEntriesAndTheSize() throws IOException {
+        String path = newPath();
+        MappedRedeemedRootStore store = new MappedRedeemedRootStore(path, CAPACITY);
+        for (int id = 0; id < 10; ++id) {
+            store.putIfAbsent(root(id, id), hash(id), id, hash(-id), Long.MAX_VALUE);
+        }
+        store.advance(root(3, 3), 3, 30, hash(30));
+        store.close();
+
+        store = new MappedRedeemedRootStore(path, 1);
+        assertEquals(10, store.size());
+        assertEquals(CAPACITY, store.getCapacity());
+        for (int id = 0; id < 10; ++id) {
+            assertNotNull(store.get(root(id, id)));
+        }
+        assertEquals(30, store.get(root(3, 3)).getLastIndex());
+        store.close();
+    }
+
+    @Test
+    public void deletingAnExpiredEntryShiftsItsRunBack() throws Exception {
+        MappedRedeemedRootStore store = new MappedRedeemedRootStore(newPath(), CAPACITY);
+        long soon = System.currentTimeMillis() + 100;
+
+        //a run that wraps around the end of the region: 99, 0, 1, 2; the entry at 1 has its home at 0
+        byte[] expired = root(99, 1);
+        byte[] first = root(99, 2);
+        byte[] second = root(0, 3);
+        byte[] third = root(99, 4);
+        store.putIfAbsent(expired, hash(1), 1, hash(1), soon);
+        store.putIfAbsent(first, hash(2), 2, hash(2), Long.MAX_VALUE);
+        store.putIfAbsent(second, hash(3), 3, hash(3), Long.MAX_VALUE);
+        store.putIfAbsent(third, hash(4), 4, hash(4), Long.MAX_VALUE);
+        assertEquals(4, store.size());
+
+        Thread.sleep(200);
+        assertNull(store.get(expired));
+        assertEquals(1, store.purgeExpired(System.currentTimeMillis()));
+
+        //a wrong shift would leave a free slot in the run and hide the entries after it
+        assertEquals(3, store.size());
+        assertEquals(2, store.get(first).getLastIndex());
+        assertEquals(3, store.get(second).getLastIndex());
+        assertEquals(4, store.get(third).getLastIndex());
+        assertEquals(RedeemedRootStore.ALREADY_REDEEMED, store.putIfAbsent(third, hash(5), 5, hash(5), Long.MAX_VALUE));
+        assertEquals(RedeemedRootStore.ADDED, store.putIfAbsent(expired, hash(6), 6, hash(6), Long.MAX_VALUE));
+
+        store.close();
+    }
+
+    @Test
+    public void growsByCopyWhenTooFull() throws IOException {
+        String path = newPath();
+        MappedRedeemedRootStore store = new MappedRedeemedRootStore(path, CAPACITY);
+
+        Random random = new Random(1);
+        byte[][] roots = new byte[3 * CAPACITY][];
+        for (int rootNo = 0; rootNo < roots.length; ++rootNo) {
+            roots[rootNo] = new byte[Constants.HASH_LENGTH];
+            random.nextBytes(roots[rootNo]);
+            assertEquals(RedeemedRootStore.ADDED, store.putIfAbsent(roots[rootNo], hash(rootNo), rootNo, hash(rootNo), Long.MAX_VALUE));
+        }
+
+        assertTrue(store.getCapacity() >= 4 * CAPACITY);
+        assertEquals(roots.length, store.size());
+        assertFalse(new File(path + ".grow").exists());
+        store.close();
+
+        store = new MappedRedeemedRootStore(path, CAPACITY);
+        assertTrue(store.getCapacity() >= 4 * CAPACITY);
+        for (int rootNo = 0; rootNo < roots.length; ++rootNo) {
+            assertEquals(rootNo, store.get(roots[rootNo]).getLastIndex());
+        }
+        store.close();
+    }
+
+    @Test
+    public void expiredEntriesAreDroppedBeforeGrowing() throws Exception {
+        MappedRedeemedRootStore store = new MappedRedeemedRootStore(newPath(), CAPACITY);
+        long soon = System.currentTimeMillis() + 100;
+        for (int id = 0; id < 70; ++id) {
+            store.putIfAbsent(root(id, id), hash(id), id, hash(id), soon);
+        }
+
+        Thread.sleep(200);
+        for (int id = 0; id < 70; ++id) {
+            assertEquals(RedeemedRootStore.ADDED, store.putIfAbsent(root(id, 1000 + id), hash(id), id, hash(id), Long.MAX_VALUE));
+        }
+
+        assertEquals(CAPACITY, store.getCapacity());
+        store.close();
+    }
+
+    @Test
+    public void refusesAnUnknownVersion() throws IOException {
+        String path = newPath();
+        new MappedRedeemedRootStore(path, CAPACITY).close();
+
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        file.seek(8);
+        file.writeInt(2);
+        file.close();
+
+        try {
+            new MappedRedeemedRootStore(path, CAPACITY);
+            fail("the version is not known");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void refusesAFileThatIsNotAStore() throws IOException {
+        File file = folder.newFile();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.write(new byte[8192]);
+        randomAccessFile.close();
+
+        try {
+            new MappedRedeemedRootStore(file.getPath(), CAPACITY);
+            fail("no magic number");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+}
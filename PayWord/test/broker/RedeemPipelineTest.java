@@ -0,0 +1,240 @@
+package broker;
+
+import backend.Account;
+import backend.Commit;
+import backend.Payment;
+import backend.RedeemMessageView;
+import org.junit.Before;
+import org.junit.Test;
+import user.User;
+import user.UserInfo;
+import utils.Constants;
+import vendor.Vendor;
+import vendor.VendorInfo;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class RedeemPipelineTest {
+
+    //the Bank is shared by the tests: every test opens its own accounts
+    private static final AtomicLong nextAccountNumber = new AtomicLong(2000000);
+
+    private static final int BALANCE = 1000;
+
+    private Bank bank;
+    private Broker broker;
+    private User user;
+    private Vendor vendor;
+    private VendorInfo vendorInfo;
+    private UserInfo userInfo;
+    private Account userAccount;
+    private Account vendorAccount;
+    private int noOfPaywords;
+
+    @Before
+    public void setUp() {
+        bank = Bank.getInstance();
+        broker = new Broker("broker@test");
+
+        userAccount = new Account(nextAccountNumber.getAndIncrement(), BALANCE);
+        bank.addUserAccount(userAccount);
+
+        user = new User("user@test");
+        user.setAccount(userAccount);
+        byte[] personalInfo = user.getPersonalInfo(BALANCE);
+        assertTrue(broker.registerNewUser(personalInfo));
+        user.setUserCertificate(broker.getUserCertificate(broker.getUserIdentityFromPersonalInfo(personalInfo)));
+
+        Account account = new Account(nextAccountNumber.getAndIncrement(), 0);
+        bank.addUserAccount(account);
+        setUpVendor("vendor@test", account);
+    }
+
+    /**
+     * Register a vendor and commit to it a new hash chain of the user
+     */
+    private void setUpVendor(String identity, Account account) {
+        vendorAccount = account;
+        vendor = new Vendor(identity);
+        vendor.setAccount(vendorAccount);
+        assertTrue(broker.registerNewVendor(vendor.getVendorInfo()));
+
+        vendorInfo = new VendorInfo();
+        vendorInfo.setIdentity(vendor.getIdentity());
+        user.generateNewHashChains(vendorInfo);
+        Commit commit = user.computeCommitment(vendorInfo);
+        userInfo = commit.getUserInfoFromCommit();
+        assertTrue(vendor.addNewCommit(userInfo, commit));
+        noOfPaywords = 0;
+    }
+
+    /**
+     * Pay the vendor some more paywords
+     * @return the redeem message of all the paywords received by the vendor
+     */
+    private byte[] pay(int count) {
+        for (int paywordNo = 0; paywordNo < count; ++paywordNo, ++noOfPaywords) {
+            Payment payment = user.constructPayment(vendorInfo, noOfPaywords, 1);
+            assertEquals(1, vendor.addNewPayment(userInfo, payment));
+        }
+
+        byte[][] messages = vendor.getRedeemMessages();
+        assertEquals(1, messages.length);
+        return messages[0];
+    }
+
+    private static byte[] withPaywordNo(byte[] message, int paywordNo) {
+        byte[] copy = Arrays.copyOf(message, message.length);
+        ByteBuffer.wrap(copy).putInt(RedeemMessageView.PAYMENT_OFFSET + Constants.HASH_LENGTH, paywordNo);
+        return copy;
+    }
+
+    private RedeemPipeline.Stage getStage(String name) {
+        for (RedeemPipeline.Stage stage : broker.getRedeemPipeline().getStages()) {
+            if (stage.getName().equals(name))
+                return stage;
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    private long getRejectedCount(String namePrefix) {
+        long count = 0;
+        for (RedeemPipeline.Stage stage : broker.getRedeemPipeline().getStages()) {
+            if (stage.getName().startsWith(namePrefix))
+                count += stage.getRejectedCount();
+        }
+        return count;
+    }
+
+    private double getVendorBalance() {
+        return bank.getAccountBalance(vendorAccount.getAccountNumber());
+    }
+
+    @Test
+    public void malformedMessagesAreRefused() {
+        byte[] random = new byte[RedeemMessageView.LENGTH];
+        new Random(1).nextBytes(random);
+
+        boolean[] results = broker.redeemBatch(new byte[][]{new byte[0], new byte[10], random, new byte[RedeemMessageView.LENGTH]});
+        assertArrayEquals(new boolean[]{false, false, false, false}, results);
+        assertEquals(4, getStage("decode").getProcessedCount() - getStage("signature-verify").getProcessedCount());
+        assertEquals(0, getStage("signature-verify").getProcessedCount());
+    }
+
+    @Test
+    public void redeemIsPaidOnce() {
+        byte[] message = pay(3);
+
+        assertTrue(broker.redeem(message));
+        assertEquals(3, getVendorBalance(), 0);
+        assertEquals(BALANCE - 3, bank.getAccountBalance(userAccount.getAccountNumber()), 0);
+
+        //the same paywords again
+        assertFalse(broker.redeem(message));
+        assertEquals(3, getVendorBalance(), 0);
+        assertEquals(1, getStage("chain-verify").getRejectedCount());
+
+        for (RedeemPipeline.Stage stage : broker.getRedeemPipeline().getStages()) {
+            assertEquals(stage.getName(), 0, stage.getQueueDepth());
+        }
+    }
+
+    @Test
+    public void laterPaywordPaysOnlyTheDifference() {
+        assertTrue(broker.redeem(pay(3)));
+        assertTrue(broker.redeem(pay(4)));
+        assertEquals(7, getVendorBalance(), 0);
+
+        //an earlier payword of the same chain
+        assertFalse(broker.redeem(withPaywordNo(pay(1), 5)));
+        assertEquals(7, getVendorBalance(), 0);
+    }
+
+    @Test
+    public void sameRedeemInABatchIsPaidOnce() {
+        byte[] message = pay(5);
+
+        boolean[] results = broker.redeemBatch(new byte[][]{message, message, message});
+        int noOfPaid = 0;
+        for (boolean result : results) {
+            if (result)
+                ++noOfPaid;
+        }
+
+        assertEquals(1, noOfPaid);
+        assertEquals(5, getVendorBalance(), 0);
+    }
+
+    @Test
+    public void paywordOutsideOfTheChainIsRefused() {
+        byte[] message = pay(2);
+        int chainLength = new RedeemMessageView(message).getCommit().getChainLength();
+
+        assertFalse(broker.redeem(withPaywordNo(message, chainLength)));
+        assertFalse(broker.redeem(withPaywordNo(message, -1)));
+        assertFalse(broker.redeem(withPaywordNo(message, Integer.MAX_VALUE)));
+        assertEquals(3, getStage("chain-verify").getRejectedCount());
+
+        //a payword that is not the one of its index
+        assertFalse(broker.redeem(withPaywordNo(message, 0)));
+        assertEquals(4, getStage("chain-verify").getRejectedCount());
+
+        //nothing was reserved
+        assertEquals(0, broker.getRedeemedRootStore().size());
+        assertTrue(broker.redeem(message));
+        assertEquals(2, getVendorBalance(), 0);
+    }
+
+    @Test
+    public void failedFirstSettlementReleasesTheReservation() {
+        //a vendor whose account is not in the Bank yet
+        setUpVendor("other-vendor@test", new Account(nextAccountNumber.getAndIncrement(), 0));
+        byte[] message = pay(3);
+        assertFalse(broker.redeem(message));
+        assertEquals(1, getRejectedCount("settle-"));
+        assertEquals(BALANCE, bank.getAccountBalance(userAccount.getAccountNumber()), 0);
+
+        bank.addUserAccount(vendorAccount);
+        assertTrue(broker.redeem(message));
+        assertEquals(3, getVendorBalance(), 0);
+
+        assertTrue(broker.redeem(pay(2)));
+        assertEquals(5, getVendorBalance(), 0);
+    }
+
+    @Test
+    public void failedLaterSettlementReleasesTheReservation() {
+        assertTrue(broker.redeem(pay(3)));
+
+        //the stages of the second redeem, settled to an account that is not in the Bank
+        byte[] message = pay(4);
+        RedeemJob job = new RedeemJob(message, new CountDownLatch(1));
+        assertTrue(broker.decodeRedeem(job));
+        assertTrue(broker.verifyRedeemSignature(job));
+        assertTrue(broker.verifyRedeemChain(job));
+        assertEquals(4, job.sumToPay);
+        assertTrue(broker.reserveRedeem(job));
+        assertEquals(6, broker.getRedeemedRootStore().get(job.c0).getLastIndex());
+
+        VendorInfo missingAccount = new VendorInfo();
+        missingAccount.setAccountNumber(nextAccountNumber.getAndIncrement());
+        job.vendorInfo = missingAccount;
+        assertFalse(broker.settleRedeem(job));
+        assertEquals(2, broker.getRedeemedRootStore().get(job.c0).getLastIndex());
+
+        assertTrue(broker.redeem(message));
+        assertEquals(7, getVendorBalance(), 0);
+        assertEquals(BALANCE - 7, bank.getAccountBalance(userAccount.getAccountNumber()), 0);
+    }
+
+}
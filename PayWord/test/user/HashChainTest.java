@@ -0,0 +1,76 @@
+package user;
+
+import org.junit.Test;
+import utils.Crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class HashChainTest {
+
+    private static final int[] LENGTHS = {1, 2, 3, 7, 64, 100, 1000, 10000};
+
+    private static int log2(int n) {
+        return 32 - Integer.numberOfLeadingZeros(n);
+    }
+
+    @Test
+    public void everyPaywordHashesToThePreviousOne() {
+        for (int length : LENGTHS) {
+            byte[] secret = Crypto.getSecret(32);
+            HashChain hashChain = new HashChain(secret, length);
+
+            byte[] previous = hashChain.getPayword(0);
+            assertArrayEquals(hashChain.getRoot(), previous);
+            for (int index = 1; index < length; ++index) {
+                byte[] payword = hashChain.getPayword(index);
+                assertArrayEquals("length=" + length + " index=" + index, previous, Crypto.hashMessage(payword));
+                previous = payword;
+
+                assertTrue("length=" + length + " pebbles=" + hashChain.getNoOfPebbles(), hashChain.getNoOfPebbles() <= 2 * log2(length) + 2);
+            }
+
+            //the last payword is the hash of the secret
+            assertArrayEquals(Crypto.hashMessage(secret), previous);
+        }
+    }
+
+    @Test
+    public void skippingAheadGivesTheSamePaywords() {
+        byte[] secret = Crypto.getSecret(32);
+        HashChain inOrder = new HashChain(secret, 1000);
+        HashChain skipping = new HashChain(secret, 1000);
+
+        byte[][] paywords = new byte[1000][];
+        for (int index = 0; index < 1000; ++index) {
+            paywords[index] = inOrder.getPayword(index);
+        }
+
+        for (int index = 0; index < 1000; index += 1 + index % 37) {
+            assertArrayEquals("index=" + index, paywords[index], skipping.getPayword(index));
+        }
+    }
+
+    @Test
+    public void goingBackGivesTheSamePaywords() {
+        byte[] secret = Crypto.getSecret(32);
+        HashChain hashChain = new HashChain(secret, 100);
+
+        byte[][] paywords = new byte[100][];
+        for (int index = 0; index < 100; ++index) {
+            paywords[index] = hashChain.getPayword(index);
+        }
+
+        //a payment sent again, then the next ones
+        assertArrayEquals(paywords[10], hashChain.getPayword(10));
+        assertArrayEquals(paywords[99], hashChain.getPayword(99));
+        assertArrayEquals(paywords[0], hashChain.getPayword(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAnIndexOutsideOfTheChain() {
+        new HashChain(10).getPayword(10);
+    }
+
+}
@@ -0,0 +1,155 @@
+package bench;
+
+import broker.BrokerServer;
+import user.User;
+import utils.Constants;
+import utils.ServerMode;
+import vendor.Vendor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Many clients registering to a BrokerServer started in this process, to compare the server modes
+ * Usage: BrokerServerLoad [thread|virtual|nio] [clients] [requestsPerClient] [vendor|user]
+ *  - vendor: VENDOR_REGISTER_TO_BROKER (cheap, no RSA)
+ *  - user: USER_REGISTER_TO_BROKER (one RSA signature for the certificate)
+ */
+public class BrokerServerLoad {
+
+    private static final int PORT = 19940;
+
+    public static void main(String[] args) throws Exception {
+        ServerMode serverMode = ServerMode.NIO;
+        int clients = 200;
+        int requestsPerClient = 50;
+        String command = "vendor";
+
+        if (args.length != 0) {
+            serverMode = ServerMode.fromString(args[0]);
+            clients = Integer.parseInt(args[1]);
+            requestsPerClient = Integer.parseInt(args[2]);
+            command = args[3];
+        }
+
+        final PrintStream results = System.out;
+        //the servers print every command; keep only the results of the test
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+
+        final ServerMode mode = serverMode;
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BrokerServer.serve(PORT, mode);
+            }
+        }, "broker-server");
+        server.setDaemon(true);
+        server.start();
+        awaitServer(PORT);
+
+        final int commandID;
+        final byte[] payload;
+        if (command.equals("user")) {
+            User user = new User("load-user@gmail.com");
+            commandID = Constants.CommunicationProtocol.USER_REGISTER_TO_BROKER;
+            payload = user.getPersonalInfo(1000);
+        } else {
+            Vendor vendor = new Vendor("load-vendor@gmail.com");
+            commandID = Constants.CommunicationProtocol.VENDOR_REGISTER_TO_BROKER;
+            payload = vendor.getVendorInfo();
+        }
+
+        final int requests = requestsPerClient;
+        final long[] latencies = new long[clients * requestsPerClient];
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(clients);
+
+        for (int c = 0; c < clients; ++c) {
+            final int clientNo = c;
+            Thread client = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (Socket socket = new Socket(Constants.LOCALHOST, PORT)) {
+                        socket.setTcpNoDelay(true);
+                        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                        start.await();
+
+                        for (int i = 0; i < requests; ++i) {
+                            long begin = System.nanoTime();
+                            out.writeInt(commandID);
+                            out.writeInt(payload.length);
+                            out.write(payload);
+                            out.flush();
+
+                            int response = in.readInt();
+                            if (commandID == Constants.CommunicationProtocol.USER_REGISTER_TO_BROKER && response == Constants.CommunicationProtocol.OK) {
+                                byte[] certificate = new byte[in.readInt()];
+                                in.readFully(certificate);
+                            }
+                            if (response != Constants.CommunicationProtocol.OK)
+                                errors.incrementAndGet();
+
+                            latencies[clientNo * requests + i] = System.nanoTime() - begin;
+                        }
+                        out.writeInt(Constants.CommunicationProtocol.END_COMMUNICATION);
+                        out.flush();
+                    } catch (IOException | InterruptedException e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            client.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+
+        Arrays.sort(latencies);
+        results.println("BrokerServerLoad: mode=" + serverMode + " command=" + command + " clients=" + clients
+                + " requests=" + latencies.length + " errors=" + errors.get()
+                + " requests/s=" + String.format("%.0f", latencies.length / (elapsed / 1e9))
+                + " p50=" + String.format("%.2fms", latencies[latencies.length / 2] / 1e6)
+                + " p99=" + String.format("%.2fms", latencies[(int) (latencies.length * 0.99)] / 1e6)
+                + " threads=" + Thread.activeCount());
+
+        System.exit(0);
+    }
+
+    /**
+     * Wait until the server accepts connections: it generates its keys before it listens
+     * @param port the port of the server
+     */
+    static void awaitServer(int port) throws InterruptedException {
+        while (true) {
+            try (Socket socket = new Socket(Constants.LOCALHOST, port)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeInt(Constants.CommunicationProtocol.END_COMMUNICATION);
+                out.flush();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package bench;
+
+import backend.Payword;
+import user.HashChain;
+import utils.Crypto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Memory and cost per payment of a hash chain kept as a list of Paywords (the previous representation in User) against
+ * HashChain, which keeps O(log n) pebbles
+ * Usage: HashChainBenchmark [chainLength] [noOfChains]
+ */
+public class HashChainBenchmark {
+
+    public static void main(String[] args) {
+        int chainLength = 10000;
+        int noOfChains = 60;
+
+        if (args.length != 0) {
+            chainLength = Integer.parseInt(args[0]);
+            noOfChains = Integer.parseInt(args[1]);
+        }
+
+        System.out.println("HashChainBenchmark: chainLength=" + chainLength + " noOfChains=" + noOfChains);
+
+        //warm up both ways
+        for (int i = 0; i < 3; ++i) {
+            spendList(listChain(chainLength));
+            spendHashChain(new HashChain(chainLength));
+        }
+
+        //memory: keep the chains alive and measure the heap
+        long before = usedMemory();
+        List<List<Payword>> lists = new ArrayList<>();
+        long begin = System.nanoTime();
+        for (int i = 0; i < noOfChains; ++i) {
+            lists.add(listChain(chainLength));
+        }
+        long listGenerate = System.nanoTime() - begin;
+        long listMemory = usedMemory() - before;
+        lists = null;
+
+        before = usedMemory();
+        List<HashChain> hashChains = new ArrayList<>();
+        begin = System.nanoTime();
+        for (int i = 0; i < noOfChains; ++i) {
+            hashChains.add(new HashChain(chainLength));
+        }
+        long hashChainGenerate = System.nanoTime() - begin;
+        long hashChainMemory = usedMemory() - before;
+
+        System.out.println("  list:      bytes/chain=" + listMemory / noOfChains
+                + " generate=" + String.format("%.2fms", listGenerate / 1e6 / noOfChains));
+        System.out.println("  HashChain: bytes/chain=" + hashChainMemory / noOfChains
+                + " generate=" + String.format("%.2fms", hashChainGenerate / 1e6 / noOfChains));
+
+        //cost of spending every payword in order
+        long listSpend = 0;
+        for (int i = 0; i < noOfChains; ++i) {
+            List<Payword> hashChain = listChain(chainLength);
+            begin = System.nanoTime();
+            spendList(hashChain);
+            listSpend += System.nanoTime() - begin;
+        }
+
+        long hashes = 0;
+        begin = System.nanoTime();
+        for (HashChain hashChain : hashChains) {
+            long hashCount = hashChain.getHashCount();
+            spendHashChain(hashChain);
+            hashes += hashChain.getHashCount() - hashCount;
+        }
+        long hashChainSpend = System.nanoTime() - begin;
+
+        long payments = (long) noOfChains * chainLength;
+        System.out.println("  list:      ns/payment=" + String.format("%.1f", (double) listSpend / payments)
+                + " hashes/payment=0 (all computed upfront)");
+        System.out.println("  HashChain: ns/payment=" + String.format("%.1f", (double) hashChainSpend / payments)
+                + " hashes/payment=" + String.format("%.2f", (double) hashes / payments));
+    }
+
+    /**
+     * The chain as User kept it before: c(n-1) first, the root last
+     */
+    private static List<Payword> listChain(int chainLength) {
+        List<Payword> hashChain = new ArrayList<>();
+        Payword last = new Payword(Crypto.getSecret(1024));
+        hashChain.add(last);
+        for (int i = chainLength - 2; i >= 0; --i) {
+            Payword current = new Payword(last);
+            hashChain.add(current);
+            last = current;
+        }
+        return hashChain;
+    }
+
+    private static int spendList(List<Payword> hashChain) {
+        int sum = 0;
+        byte[] payment = new byte[28];
+        for (int paymentNo = 0; paymentNo < hashChain.size(); ++paymentNo) {
+            byte[] payword = hashChain.get(hashChain.size() - paymentNo - 1).getBytes();
+            System.arraycopy(payword, 0, payment, 0, payword.length);
+            sum += payment[0];
+        }
+        return sum;
+    }
+
+    private static int spendHashChain(HashChain hashChain) {
+        int sum = 0;
+        byte[] payment = new byte[28];
+        for (int paymentNo = 0; paymentNo < hashChain.getLength(); ++paymentNo) {
+            hashChain.getPayword(paymentNo, payment, 0);
+            sum += payment[0];
+        }
+        return sum;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
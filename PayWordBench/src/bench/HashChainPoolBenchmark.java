@@ -0,0 +1,59 @@
+package bench;
+
+import user.HashChain;
+import user.HashChainPool;
+import utils.Constants;
+
+
+/**
+ * Time to get the three chains of a first payment, computed on the spot against taken from the HashChainPool,
+ * for vendors onboarded at a steady rate
+ * Usage: HashChainPoolBenchmark [noOfVendors] [vendorsPerSecond]
+ */
+public class HashChainPoolBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int noOfVendors = 200;
+        int vendorsPerSecond = 20;
+
+        if (args.length != 0) {
+            noOfVendors = Integer.parseInt(args[0]);
+            vendorsPerSecond = Integer.parseInt(args[1]);
+        }
+
+        System.out.println("HashChainPoolBenchmark: noOfVendors=" + noOfVendors + " vendorsPerSecond=" + vendorsPerSecond);
+
+        long direct = 0;
+        for (int i = 0; i < noOfVendors; ++i) {
+            long begin = System.nanoTime();
+            for (int j = 0; j < 3; ++j) {
+                new HashChain(Constants.HASH_CHAIN_LENGTH);
+            }
+            direct += System.nanoTime() - begin;
+            Thread.sleep(1000 / vendorsPerSecond);
+        }
+
+        HashChainPool hashChainPool = HashChainPool.getInstance();
+        //let the pool reach its minimum size, as it would while the user registers
+        Thread.sleep(500);
+
+        long pooled = 0;
+        long maxPooled = 0;
+        for (int i = 0; i < noOfVendors; ++i) {
+            long begin = System.nanoTime();
+            for (int j = 0; j < 3; ++j) {
+                hashChainPool.getHashChain(Constants.HASH_CHAIN_LENGTH);
+            }
+            long elapsed = System.nanoTime() - begin;
+            pooled += elapsed;
+            maxPooled = Math.max(maxPooled, elapsed);
+            Thread.sleep(1000 / vendorsPerSecond);
+        }
+
+        System.out.println("  direct: avg=" + String.format("%.3fms", direct / 1e6 / noOfVendors));
+        System.out.println("  pooled: avg=" + String.format("%.3fms", pooled / 1e6 / noOfVendors)
+                + " max=" + String.format("%.3fms", maxPooled / 1e6));
+        System.out.println("  " + hashChainPool);
+    }
+
+}
@@ -0,0 +1,348 @@
+package bench;
+
+import backend.Account;
+import backend.Commit;
+import backend.Payment;
+import broker.Bank;
+import broker.Broker;
+import broker.RedeemedRootStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import user.HashChain;
+import user.User;
+import user.UserInfo;
+import utils.Constants;
+import utils.Crypto;
+import vendor.Vendor;
+import vendor.VendorInfo;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The hot paths of the Broker, the Vendor and the User, measured by JMH
+ * The parameters are the sizes the costs depend on: the length of the hash chains, the number of users registered to
+ * the Broker and the number of hash chains it already redeemed
+ * Build with mvn package and run with: java -jar PayWordBench/target/benchmarks.jar [regex] [-p name=value1,value2]
+ * Add -prof gc for the bytes allocated per operation and the GC time, and -rf csv -rff results.csv to compare two builds
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathJmhBenchmarks {
+
+    //the accounts of the benchmarks, away from the ones of the other benchmarks
+    private static final long FIRST_ACCOUNT_NO = 900000;
+
+
+    /**
+     * Crypto.hashMessage of a payword (20 bytes) and of a commit (1060 bytes)
+     */
+    @State(Scope.Thread)
+    public static class HashMessageState {
+
+        @Param({"20", "1060"})
+        public int messageLength;
+
+        byte[] message;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            message = Crypto.getSecret(messageLength);
+        }
+    }
+
+
+    /**
+     * The generation of a hash chain for a vendor (User.generateHashChain before the chains were pebbled), as done by
+     * the HashChainPool
+     */
+    @State(Scope.Thread)
+    public static class HashChainState {
+
+        @Param({"1000", "10000"})
+        public int chainLength;
+
+        byte[] secret;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            secret = Crypto.getSecret(Constants.HASH_LENGTH);
+        }
+    }
+
+
+    /**
+     * The certificate of a registered user, among registeredUsers, asked again as on every reconnect of the user
+     * The first time it is one RSA signature; after that the lookup of the certificate already issued, so with more
+     * users than the iterations get through it is the signature that is measured
+     */
+    @State(Scope.Thread)
+    public static class GetUserCertificateState {
+
+        @Param({"1000", "100000"})
+        public int registeredUsers;
+
+        Broker broker;
+        byte[][] identities;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            broker = new Broker("bench-broker@gmail.com");
+            identities = registerUsers(broker, registeredUsers);
+        }
+    }
+
+
+    /**
+     * The redeem of one more payword of a hash chain already redeemed once, the usual case of a vendor redeeming as it
+     * is paid: the commit is known, so it is one hash and the transfer, through the stages of the redeem pipeline
+     * The messages of a whole chain are made in advance; making the next chain when one is used up is counted in the
+     * score, spread over chainLength redeems
+     */
+    @State(Scope.Thread)
+    public static class RedeemState {
+
+        @Param({"1000", "100000"})
+        public int registeredUsers;
+
+        @Param({"0", "1000000"})
+        public int redeemedRoots;
+
+        Broker broker;
+        User user;
+        VendorInfo vendorInfo;
+        byte[][] messages;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            broker = new Broker("bench-broker@gmail.com");
+            registerUsers(broker, registeredUsers);
+            fillRedeemedRoots(broker.getRedeemedRootStore(), redeemedRoots);
+
+            Vendor vendor = newVendor(FIRST_ACCOUNT_NO + 1);
+            broker.registerNewVendor(vendor.getVendorInfo());
+            vendorInfo = new VendorInfo();
+            vendorInfo.setIdentity(vendor.getIdentity());
+
+            user = newUser(FIRST_ACCOUNT_NO + 2, broker);
+            nextChain();
+        }
+
+        void nextChain() {
+            user.generateNewHashChains(vendorInfo);
+            byte[] commitBytes = user.computeCommitment(vendorInfo).getBytes();
+
+            messages = new byte[Constants.HASH_CHAIN_LENGTH][];
+            for (int paymentNo = 0; paymentNo < messages.length; ++paymentNo) {
+                byte[] message = new byte[commitBytes.length + Constants.PAYMENT_LENGTH];
+                System.arraycopy(commitBytes, 0, message, 0, commitBytes.length);
+                byte[] payment = user.constructPayment(vendorInfo, paymentNo, Constants.PaywordValue.ONE).getBytes();
+                System.arraycopy(payment, 0, message, commitBytes.length, Constants.PAYMENT_LENGTH);
+                messages[paymentNo] = message;
+            }
+
+            //the first redeem of the chain verifies the commit; the benchmark is about the next ones
+            if (!broker.redeem(messages[0]))
+                throw new IllegalStateException("Broker.redeem refused the first redeem of the chain");
+            next = 1;
+        }
+    }
+
+
+    /**
+     * A commit received by the vendor, as handled by VendorServerClient: decode it, check the User signature and the
+     * certificate (cached after the first time); it is the same commit every time, so the payments of the user are kept
+     */
+    @State(Scope.Thread)
+    public static class AddNewCommitState {
+
+        Vendor vendor;
+        byte[] commitBytes;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Broker broker = new Broker("bench-broker@gmail.com");
+            vendor = newVendor(FIRST_ACCOUNT_NO + 1);
+            VendorInfo vendorInfo = new VendorInfo();
+            vendorInfo.setIdentity(vendor.getIdentity());
+
+            User user = newUser(FIRST_ACCOUNT_NO + 2, broker);
+            user.generateNewHashChains(vendorInfo);
+            commitBytes = user.computeCommitment(vendorInfo).getBytes();
+        }
+    }
+
+
+    /**
+     * A payment received by the vendor, paying for paywordsPerPayment paywords (1 for MAKE_PAYMENT, more for PAY_N)
+     * The payments of two chains are made in advance; committing to the other chain when one is used up is counted in
+     * the score, spread over the payments of the chain. The vendor keeps the payments of a commit it already has, so
+     * the same commit sent again would not start them over
+     */
+    @State(Scope.Thread)
+    public static class AddNewPaymentState {
+
+        @Param({"1", "100"})
+        public int paywordsPerPayment;
+
+        Vendor vendor;
+        UserInfo userInfo;
+        Commit[] commits;
+        Payment[][] payments;
+        int chainNo;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Broker broker = new Broker("bench-broker@gmail.com");
+            vendor = newVendor(FIRST_ACCOUNT_NO + 1);
+            VendorInfo vendorInfo = new VendorInfo();
+            vendorInfo.setIdentity(vendor.getIdentity());
+
+            User user = newUser(FIRST_ACCOUNT_NO + 2, broker);
+            commits = new Commit[2];
+            payments = new Payment[2][Constants.HASH_CHAIN_LENGTH / paywordsPerPayment];
+            for (int chainNo = 0; chainNo < commits.length; ++chainNo) {
+                user.generateNewHashChains(vendorInfo);
+                commits[chainNo] = user.computeCommitment(vendorInfo);
+
+                //the first payment pays for c(0) too: it is c(k-1), then every payment is k paywords further
+                for (int paymentNo = 0; paymentNo < payments[chainNo].length; ++paymentNo) {
+                    payments[chainNo][paymentNo] = user.constructPayment(vendorInfo, (paymentNo + 1) * paywordsPerPayment - 1, Constants.PaywordValue.ONE);
+                }
+            }
+            userInfo = commits[0].getUserInfoFromCommit();
+            chainNo = 1;
+            next = payments[chainNo].length;
+        }
+    }
+
+
+    //the results are returned, so JMH consumes them and the JIT can't drop the work
+
+    @Benchmark
+    public Object hashMessage(HashMessageState state) {
+        return Crypto.hashMessage(state.message);
+    }
+
+    @Benchmark
+    public Object hashChain(HashChainState state) {
+        return new HashChain(state.secret, state.chainLength);
+    }
+
+    @Benchmark
+    public Object getUserCertificate(GetUserCertificateState state) {
+        byte[] identity = state.identities[state.next];
+        state.next = (state.next + 1) % state.identities.length;
+        return state.broker.getUserCertificate(identity);
+    }
+
+    @Benchmark
+    public Object redeem(RedeemState state) {
+        if (state.next == state.messages.length)
+            state.nextChain();
+
+        if (!state.broker.redeem(state.messages[state.next++]))
+            throw new IllegalStateException("Broker.redeem refused a redeem");
+        return state.messages;
+    }
+
+    @Benchmark
+    public Object addNewCommit(AddNewCommitState state) {
+        Commit commit = new Commit(state.commitBytes);
+        if (!state.vendor.addNewCommit(commit.getUserInfoFromCommit(), commit))
+            throw new IllegalStateException("Vendor.addNewCommit refused the commit");
+        return commit;
+    }
+
+    @Benchmark
+    public Object addNewPayment(AddNewPaymentState state) {
+        Payment[] payments = state.payments[state.chainNo];
+        if (state.next == payments.length) {
+            state.chainNo = 1 - state.chainNo;
+            payments = state.payments[state.chainNo];
+            if (!state.vendor.addNewCommit(state.userInfo, state.commits[state.chainNo]))
+                throw new IllegalStateException("Vendor.addNewCommit refused the commit");
+            state.next = 0;
+        }
+
+        if (state.vendor.addNewPayment(state.userInfo, payments[state.next++], state.paywordsPerPayment) != Constants.CommunicationProtocol.OK)
+            throw new IllegalStateException("Vendor.addNewPayment refused a payment");
+        return payments;
+    }
+
+
+    private static Vendor newVendor(long accountNo) {
+        Vendor vendor = new Vendor("bench-vendor@gmail.com");
+        Account account = new Account(accountNo, 0);
+        Bank.getInstance().addUserAccount(account);
+        vendor.setAccount(account);
+        return vendor;
+    }
+
+    /**
+     * A user registered to the broker, with its certificate
+     */
+    private static User newUser(long accountNo, Broker broker) {
+        User user = new User("bench-user@gmail.com");
+        Account account = new Account(accountNo, 1e12);
+        Bank.getInstance().addUserAccount(account);
+        user.setAccount(account);
+
+        byte[] personalInfo = user.getPersonalInfo(1000);
+        broker.registerNewUser(personalInfo);
+        user.setUserCertificate(broker.getUserCertificate(broker.getUserIdentityFromPersonalInfo(personalInfo)));
+        return user;
+    }
+
+    /**
+     * Register users that share a key, so registering many of them takes no RSA key generation
+     * @return the identities of the users
+     */
+    private static byte[][] registerUsers(Broker broker, int noOfUsers) {
+        User template = new User("bench-registered-user@gmail.com");
+        template.setAccount(new Account(FIRST_ACCOUNT_NO, 0));
+        byte[] personalInfo = template.getPersonalInfo(1000);
+
+        byte[][] identities = new byte[noOfUsers][];
+        for (int userNo = 0; userNo < noOfUsers; ++userNo) {
+            //the identity follows its length; its first bytes become the number of the user
+            ByteBuffer.wrap(personalInfo, Constants.INT_NO_OF_BYTES, Constants.LONG_NO_OF_BYTES).putLong(userNo);
+            broker.registerNewUser(personalInfo);
+            identities[userNo] = broker.getUserIdentityFromPersonalInfo(personalInfo);
+        }
+
+        return identities;
+    }
+
+    private static void fillRedeemedRoots(RedeemedRootStore redeemedRoots, int noOfRoots) {
+        Random random = new Random(noOfRoots);
+        byte[] root = new byte[Constants.HASH_LENGTH];
+        byte[] digest = new byte[Constants.HASH_LENGTH];
+        byte[] payword = new byte[Constants.HASH_LENGTH];
+        for (int rootNo = 0; rootNo < noOfRoots; ++rootNo) {
+            random.nextBytes(root);
+            random.nextBytes(digest);
+            random.nextBytes(payword);
+            redeemedRoots.putIfAbsent(root, digest, 1, payword, Long.MAX_VALUE);
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package bench;
+
+import broker.AccountIndex;
+import broker.Ledger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * Throughput of journaled transfers, one fsync per transfer against group commit
+ * Usage: LedgerBenchmark [threads] [transfersPerThread] [accounts]
+ */
+public class LedgerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = 16;
+        int transfersPerThread = 500;
+        int noOfAccounts = 10000;
+
+        if (args.length != 0) {
+            threads = Integer.parseInt(args[0]);
+            transfersPerThread = Integer.parseInt(args[1]);
+            noOfAccounts = Integer.parseInt(args[2]);
+        }
+
+        System.out.println("LedgerBenchmark: threads=" + threads + " transfersPerThread=" + transfersPerThread + " accounts=" + noOfAccounts);
+
+        run(false, threads, transfersPerThread, noOfAccounts);
+        run(true, threads, transfersPerThread, noOfAccounts);
+    }
+
+    private static void run(boolean groupCommit, int threads, int transfersPerThread, int noOfAccounts) throws Exception {
+        File file = File.createTempFile("ledger-benchmark", ".ledger");
+        file.deleteOnExit();
+
+        final AccountIndex accounts = new AccountIndex();
+        final Ledger ledger = new Ledger(file.getPath(), groupCommit);
+        ledger.replay(accounts);
+        for (long accountNo = 0; accountNo < noOfAccounts; ++accountNo) {
+            accounts.put(accountNo, 1000);
+        }
+
+        final int accountsCount = noOfAccounts;
+        final int transfersCount = transfersPerThread;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; ++t) {
+            final long seed = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        start.await();
+                        for (int i = 0; i < transfersCount; ++i) {
+                            long from = random.nextInt(accountsCount);
+                            long to = random.nextInt(accountsCount);
+                            ledger.appendTransfer(from, to, 1);
+                            accounts.transfer(from, to, 1);
+                        }
+                    } catch (InterruptedException | IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            thread.start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - startTime;
+        ledger.close();
+
+        long total = (long) threads * transfersPerThread;
+        System.out.println("LedgerBenchmark: groupCommit=" + groupCommit
+                + " transfers=" + total
+                + " seconds=" + String.format("%.3f", elapsed / 1e9)
+                + " transfers/s=" + String.format("%.0f", total / (elapsed / 1e9)));
+
+        //replay the journal into an empty index
+        AccountIndex rebuilt = new AccountIndex();
+        Ledger replayed = new Ledger(file.getPath(), groupCommit);
+        long replayStart = System.nanoTime();
+        long records = replayed.replay(rebuilt);
+        long replayElapsed = System.nanoTime() - replayStart;
+        replayed.close();
+        System.out.println("LedgerBenchmark: replay records=" + records + " millis=" + String.format("%.1f", replayElapsed / 1e6));
+
+        file.delete();
+    }
+
+}
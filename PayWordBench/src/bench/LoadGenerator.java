@@ -0,0 +1,393 @@
+package bench;
+
+import backend.Account;
+import backend.Commit;
+import backend.Payment;
+import broker.Bank;
+import broker.BrokerServer;
+import user.User;
+import utils.Constants;
+import utils.FramedTransport;
+import utils.Metrics;
+import utils.OperationMetrics;
+import utils.ServerMode;
+import vendor.Vendor;
+import vendor.VendorInfo;
+import vendor.VendorServerClient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Simulated users paying simulated vendors through a real BrokerServer and real VendorServerClients on localhost
+ * Every user registers to the Broker, then, from its arrival, loops until the end of the run: it picks a vendor, asks
+ * its identity, commits to it and makes the payments of a session, waiting thinkTime after each answer (closed loop)
+ * Every vendor redeems what it was paid every redeemInterval, and once more at the end; a REDEEM_BATCH counts as NOK
+ * when one of its messages is refused, e.g. the message of a user that paid nothing since the previous redeem
+ * The latencies are measured by the users and the vendors, per command; the report ends with the metrics of the
+ * servers, and with the paywords the vendors accepted against the paywords the Broker paid them for. A new commit
+ * replaces the previous one, so the paywords accepted since the last redeem of a commit are not paid
+ * Usage: LoadGenerator [-users 1000] [-vendors 50] [-arrivalRate usersPerSecond] [-duration seconds]
+ *                      [-payments paymentsPerSession] [-paywords paywordsPerPayment] [-thinkTime millis]
+ *                      [-redeemInterval millis] [-mode thread|virtual|nio]
+ * Run it with -Dpayword.log.level=ERROR: the refusals are expected under load and would flood the console
+ */
+public class LoadGenerator {
+
+    private static final int BROKER_PORT = 19941;
+    private static final int FIRST_VENDOR_PORT = 20000;
+    private static final long FIRST_VENDOR_ACCOUNT_NO = 500000;
+    private static final long FIRST_USER_ACCOUNT_NO = 600000;
+
+    private int noOfUsers = 1000;
+    private int noOfVendors = 50;
+    private double arrivalRate = 200;
+    private long durationMillis = 30 * 1000;
+    private int paymentsPerSession = 20;
+    private int paywordsPerPayment = 1;
+    private long thinkTimeMillis = 10;
+    private long redeemIntervalMillis = 5000;
+    private ServerMode serverMode = ServerMode.NIO;
+
+    //measured by the clients, so they include the network and the queues of the servers
+    private final OperationMetrics userRegisterMetrics = new OperationMetrics("USER_REGISTER_TO_BROKER");
+    private final OperationMetrics getIdentityMetrics = new OperationMetrics("GET_IDENTITY");
+    private final OperationMetrics commitMetrics = new OperationMetrics("COMMIT");
+    private final OperationMetrics paymentMetrics = new OperationMetrics("MAKE_PAYMENT");
+    private final OperationMetrics payNMetrics = new OperationMetrics("PAY_N");
+    private final OperationMetrics redeemBatchMetrics = new OperationMetrics("REDEEM_BATCH");
+
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong acceptedPaywords = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator loadGenerator = new LoadGenerator();
+
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "-users":
+                    loadGenerator.noOfUsers = Integer.parseInt(args[++i]);
+                    break;
+                case "-vendors":
+                    loadGenerator.noOfVendors = Integer.parseInt(args[++i]);
+                    break;
+                case "-arrivalRate":
+                    loadGenerator.arrivalRate = Double.parseDouble(args[++i]);
+                    break;
+                case "-duration":
+                    loadGenerator.durationMillis = Long.parseLong(args[++i]) * 1000;
+                    break;
+                case "-payments":
+                    loadGenerator.paymentsPerSession = Integer.parseInt(args[++i]);
+                    break;
+                case "-paywords":
+                    loadGenerator.paywordsPerPayment = Integer.parseInt(args[++i]);
+                    break;
+                case "-thinkTime":
+                    loadGenerator.thinkTimeMillis = Long.parseLong(args[++i]);
+                    break;
+                case "-redeemInterval":
+                    loadGenerator.redeemIntervalMillis = Long.parseLong(args[++i]);
+                    break;
+                case "-mode":
+                    loadGenerator.serverMode = ServerMode.fromString(args[++i]);
+                    break;
+                default:
+                    System.out.println("LoadGenerator: unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        //a session can't pay for more paywords than a chain has
+        int maxPayments = Constants.HASH_CHAIN_LENGTH / loadGenerator.paywordsPerPayment;
+        if (loadGenerator.paymentsPerSession > maxPayments) {
+            System.out.println("LoadGenerator: payments=" + loadGenerator.paymentsPerSession + " > " + maxPayments + " => payments=" + maxPayments);
+            loadGenerator.paymentsPerSession = maxPayments;
+        }
+
+        loadGenerator.run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        System.out.println("LoadGenerator: users=" + noOfUsers + " vendors=" + noOfVendors + " mode=" + serverMode
+                + " arrivalRate=" + arrivalRate + "/s duration=" + durationMillis / 1000 + "s payments=" + paymentsPerSession
+                + " paywords=" + paywordsPerPayment + " thinkTime=" + thinkTimeMillis + "ms redeemInterval=" + redeemIntervalMillis + "ms");
+
+        final ServerMode mode = serverMode;
+        Thread broker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BrokerServer.serve(BROKER_PORT, mode);
+            }
+        }, "broker-server");
+        broker.setDaemon(true);
+        broker.start();
+        BrokerServerLoad.awaitServer(BROKER_PORT);
+
+        //the RSA keys of the users and the vendors take most of the setup: generate them on every core
+        ExecutorService setup = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        long setupStart = System.nanoTime();
+
+        List<Future<VendorServerClient>> vendorFutures = new ArrayList<>();
+        for (int vendorNo = 0; vendorNo < noOfVendors; ++vendorNo) {
+            final int number = vendorNo;
+            vendorFutures.add(setup.submit(new Callable<VendorServerClient>() {
+                @Override
+                public VendorServerClient call() throws Exception {
+                    return startVendor(number);
+                }
+            }));
+        }
+        final List<VendorServerClient> vendors = new ArrayList<>();
+        for (Future<VendorServerClient> future : vendorFutures) {
+            vendors.add(future.get());
+        }
+
+        List<Future<User>> userFutures = new ArrayList<>();
+        for (int userNo = 0; userNo < noOfUsers; ++userNo) {
+            final int number = userNo;
+            userFutures.add(setup.submit(new Callable<User>() {
+                @Override
+                public User call() throws Exception {
+                    return registerUser(number);
+                }
+            }));
+        }
+        List<User> users = new ArrayList<>();
+        for (Future<User> future : userFutures) {
+            User user = future.get();
+            if (user != null)
+                users.add(user);
+        }
+        setup.shutdown();
+
+        double setupSeconds = (System.nanoTime() - setupStart) / 1e9;
+        System.out.println("LoadGenerator: setup=" + String.format("%.1fs", setupSeconds) + " registeredUsers=" + users.size());
+
+        //the vendors redeem on a schedule, spread over the interval
+        ScheduledExecutorService redeemers = Executors.newScheduledThreadPool(Math.max(1, Math.min(noOfVendors, 8)));
+        for (int vendorNo = 0; vendorNo < vendors.size(); ++vendorNo) {
+            final VendorServerClient vendor = vendors.get(vendorNo);
+            redeemers.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    redeem(vendor);
+                }
+            }, redeemIntervalMillis * (vendorNo + 1) / vendors.size(), redeemIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        final long runStart = System.nanoTime();
+        final long runEnd = runStart + durationMillis * 1000 * 1000;
+        List<Thread> userThreads = new ArrayList<>();
+        for (int userNo = 0; userNo < users.size(); ++userNo) {
+            final User user = users.get(userNo);
+            //the users arrive at arrivalRate, then stay until the end
+            final long arrival = runStart + (long) (userNo / arrivalRate * 1e9);
+            final Random random = new Random(userNo);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sleepUntil(arrival);
+                        while (System.nanoTime() < runEnd) {
+                            runSession(user, FIRST_VENDOR_PORT + random.nextInt(noOfVendors), runEnd);
+                        }
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, "load-user-" + userNo);
+            thread.start();
+            userThreads.add(thread);
+        }
+
+        for (Thread thread : userThreads) {
+            thread.join();
+        }
+        double runSeconds = (System.nanoTime() - runStart) / 1e9;
+
+        redeemers.shutdown();
+        redeemers.awaitTermination(1, TimeUnit.MINUTES);
+        for (VendorServerClient vendor : vendors) {
+            redeem(vendor);
+            vendor.endCommunicationWithBroker();
+        }
+
+        long redeemedPaywords = 0;
+        for (int vendorNo = 0; vendorNo < noOfVendors; ++vendorNo) {
+            redeemedPaywords += (long) Bank.getInstance().getAccountBalance(FIRST_VENDOR_ACCOUNT_NO + vendorNo);
+        }
+
+        System.out.println("LoadGenerator: run=" + String.format("%.1fs", runSeconds) + " sessions=" + sessions.get()
+                + " acceptedPaywords=" + acceptedPaywords.get() + " redeemedPaywords=" + redeemedPaywords);
+        print(userRegisterMetrics, setupSeconds);
+        print(getIdentityMetrics, runSeconds);
+        print(commitMetrics, runSeconds);
+        print(paymentMetrics, runSeconds);
+        print(payNMetrics, runSeconds);
+        print(redeemBatchMetrics, runSeconds);
+
+        System.out.println("LoadGenerator: server side");
+        System.out.print(Metrics.getInstance().getReport());
+    }
+
+    private VendorServerClient startVendor(int vendorNo) {
+        Vendor vendor = new Vendor("load-vendor-" + vendorNo + "@gmail.com");
+        Account account = new Account(FIRST_VENDOR_ACCOUNT_NO + vendorNo, 0);
+        Bank.getInstance().addUserAccount(account);
+        vendor.setAccount(account);
+
+        final VendorServerClient vendorServerClient = new VendorServerClient(FIRST_VENDOR_PORT + vendorNo);
+        vendorServerClient.setVendor(vendor);
+        vendorServerClient.setServerMode(serverMode);
+        vendorServerClient.connectToBroker(Constants.LOCALHOST, BROKER_PORT);
+        vendorServerClient.registerToBroker();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                vendorServerClient.initServer();
+            }
+        }, "load-vendor-" + vendorNo);
+        thread.setDaemon(true);
+        thread.start();
+
+        try {
+            BrokerServerLoad.awaitServer(FIRST_VENDOR_PORT + vendorNo);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        return vendorServerClient;
+    }
+
+    /**
+     * Make a user and register it to the Broker
+     * @return the user, with its certificate, or null if the Broker refused it
+     */
+    private User registerUser(int userNo) {
+        User user = new User("load-user-" + userNo + "@gmail.com");
+        Account account = new Account(FIRST_USER_ACCOUNT_NO + userNo, 1e9);
+        Bank.getInstance().addUserAccount(account);
+        user.setAccount(account);
+
+        long start = System.nanoTime();
+        FramedTransport transport = null;
+        try {
+            transport = FramedTransport.connect(Constants.LOCALHOST, BROKER_PORT);
+            transport.send(Constants.CommunicationProtocol.USER_REGISTER_TO_BROKER, user.getPersonalInfo(1000));
+
+            int response = transport.readInt();
+            if (response == Constants.CommunicationProtocol.OK)
+                user.setUserCertificate(transport.readPayload());
+            userRegisterMetrics.record(start, response);
+
+            transport.send(Constants.CommunicationProtocol.END_COMMUNICATION);
+            return response == Constants.CommunicationProtocol.OK ? user : null;
+        } catch (IOException e) {
+            userRegisterMetrics.recordError(start);
+            return null;
+        } finally {
+            close(transport);
+        }
+    }
+
+    /**
+     * One session of a user with a vendor: its identity, a commit, then the payments
+     * @param runEnd the System.nanoTime() after which no more payment is made
+     */
+    private void runSession(User user, int vendorPort, long runEnd) throws InterruptedException {
+        sessions.incrementAndGet();
+
+        OperationMetrics current = getIdentityMetrics;
+        long start = System.nanoTime();
+        FramedTransport transport = null;
+        try {
+            transport = FramedTransport.connect(Constants.LOCALHOST, vendorPort);
+            transport.send(Constants.CommunicationProtocol.GET_IDENTITY);
+            byte[] identity = transport.readBytes(transport.readInt());
+            getIdentityMetrics.record(start, Constants.CommunicationProtocol.OK);
+
+            VendorInfo vendorInfo = new VendorInfo();
+            vendorInfo.setIdentity(identity);
+            user.generateNewHashChains(vendorInfo);
+            Commit commit = user.computeCommitment(vendorInfo);
+
+            current = commitMetrics;
+            start = System.nanoTime();
+            transport.send(Constants.CommunicationProtocol.COMMIT, commit.getBytes());
+            int response = transport.readInt();
+            commitMetrics.record(start, response);
+
+            int commandID = paywordsPerPayment == 1 ? Constants.CommunicationProtocol.MAKE_PAYMENT : Constants.CommunicationProtocol.PAY_N;
+            current = paywordsPerPayment == 1 ? paymentMetrics : payNMetrics;
+            for (int paymentNo = 0; paymentNo < paymentsPerSession && response == Constants.CommunicationProtocol.OK; ++paymentNo) {
+                Thread.sleep(thinkTimeMillis);
+                if (System.nanoTime() >= runEnd)
+                    break;
+
+                //the first payment pays for c(0) too: every payment ends paywordsPerPayment paywords further
+                Payment payment = user.constructPayment(vendorInfo, (paymentNo + 1) * paywordsPerPayment - 1, Constants.PaywordValue.ONE);
+
+                start = System.nanoTime();
+                transport.send(commandID, payment.getBytes());
+                response = transport.readInt();
+                current.record(start, response);
+                if (response == Constants.CommunicationProtocol.OK)
+                    acceptedPaywords.addAndGet(paywordsPerPayment);
+            }
+
+            transport.send(Constants.CommunicationProtocol.END_COMMUNICATION);
+        } catch (IOException e) {
+            current.recordError(start);
+        } finally {
+            close(transport);
+        }
+
+        Thread.sleep(thinkTimeMillis);
+    }
+
+    private void redeem(VendorServerClient vendor) {
+        long start = System.nanoTime();
+        boolean result = vendor.redeemBatch();
+        redeemBatchMetrics.record(start, result);
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long millis = (nanoTime - System.nanoTime()) / (1000 * 1000);
+        if (millis > 0)
+            Thread.sleep(millis);
+    }
+
+    private static void close(FramedTransport transport) {
+        if (transport == null)
+            return;
+
+        try {
+            transport.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void print(OperationMetrics operationMetrics, double seconds) {
+        if (operationMetrics.getCount() == 0)
+            return;
+
+        System.out.println("LoadGenerator: " + operationMetrics
+                + " p90=" + String.format("%.1fus", operationMetrics.getP90Micros())
+                + " throughput=" + String.format("%.0f/s", operationMetrics.getCount() / seconds));
+    }
+
+}
@@ -0,0 +1,159 @@
+package bench;
+
+import backend.Account;
+import backend.Commit;
+import backend.Payment;
+import backend.RedeemBatch;
+import broker.Bank;
+import broker.Broker;
+import broker.BrokerServer;
+import user.User;
+import user.UserInfo;
+import utils.Constants;
+import utils.ServerMode;
+import vendor.Vendor;
+import vendor.VendorInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+
+
+/**
+ * Redeem the payments of many users with one REDEEM request per user, then with REDEEM_BATCH requests
+ * Each way gets its own vendor and users, so the Broker checks every commit signature in both cases
+ * Usage: RedeemBatchBenchmark [usersPerRun] [paymentsPerUser]
+ */
+public class RedeemBatchBenchmark {
+
+    private static final int PORT = 19941;
+
+    public static void main(String[] args) throws Exception {
+        int usersPerRun = 500;
+        int paymentsPerUser = 10;
+
+        if (args.length != 0) {
+            usersPerRun = Integer.parseInt(args[0]);
+            paymentsPerUser = Integer.parseInt(args[1]);
+        }
+
+        final PrintStream results = System.out;
+        //the Broker prints every step; keep only the results of the benchmark
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BrokerServer.serve(PORT, ServerMode.NIO);
+            }
+        }, "broker-server");
+        server.setDaemon(true);
+        server.start();
+        BrokerServerLoad.awaitServer(PORT);
+
+        byte[][] singleMessages = redeemMessages(1, 1000, usersPerRun, paymentsPerUser);
+        byte[][] batchMessages = redeemMessages(2, 1000 + usersPerRun, usersPerRun, paymentsPerUser);
+        results.println("RedeemBatchBenchmark: users=" + usersPerRun + " paymentsPerUser=" + paymentsPerUser);
+
+        try (Socket socket = new Socket(Constants.LOCALHOST, PORT)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            long begin = System.nanoTime();
+            int ok = 0;
+            for (byte[] redeemMessage : singleMessages) {
+                out.writeInt(Constants.CommunicationProtocol.REDEEM);
+                out.writeInt(redeemMessage.length);
+                out.write(redeemMessage);
+                out.flush();
+                if (in.readInt() == Constants.CommunicationProtocol.OK)
+                    ++ok;
+            }
+            print(results, "REDEEM", ok, singleMessages.length, System.nanoTime() - begin);
+
+            begin = System.nanoTime();
+            ok = 0;
+            for (int start = 0; start < batchMessages.length; start += Constants.REDEEM_BATCH_SIZE) {
+                int end = Math.min(start + Constants.REDEEM_BATCH_SIZE, batchMessages.length);
+                byte[][] batch = new byte[end - start][];
+                System.arraycopy(batchMessages, start, batch, 0, batch.length);
+                byte[] bytes = new RedeemBatch(batch).getBytes();
+
+                out.writeInt(Constants.CommunicationProtocol.REDEEM_BATCH);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.flush();
+                int noOfResults = in.readInt();
+                for (int resultNo = 0; resultNo < noOfResults; ++resultNo) {
+                    if (in.readInt() == Constants.CommunicationProtocol.OK)
+                        ++ok;
+                }
+            }
+            print(results, "REDEEM_BATCH", ok, batchMessages.length, System.nanoTime() - begin);
+
+            out.writeInt(Constants.CommunicationProtocol.END_COMMUNICATION);
+            out.flush();
+        }
+
+        results.println("RedeemBatchBenchmark: vendor balances=" + Bank.getInstance().getAccountBalance(1)
+                + " " + Bank.getInstance().getAccountBalance(2));
+        results.println(Broker.getInstance().getRedeemPipeline());
+        System.exit(0);
+    }
+
+    /**
+     * Register a vendor and the users, commit to the vendor and pay it, in this process
+     * @return the redeem message of every user
+     */
+    private static byte[][] redeemMessages(long vendorAccountNo, long firstAccountNo, int noOfUsers, int paymentsPerUser) {
+        Broker broker = Broker.getInstance();
+
+        Vendor vendor = new Vendor("bench-vendor-" + vendorAccountNo + "@gmail.com");
+        Account vendorAccount = new Account(vendorAccountNo, 0);
+        Bank.getInstance().addUserAccount(vendorAccount);
+        vendor.setAccount(vendorAccount);
+        broker.registerNewVendor(vendor.getVendorInfo());
+
+        VendorInfo vendorInfo = new VendorInfo();
+        vendorInfo.setIdentity(vendor.getIdentity());
+
+        for (int userNo = 0; userNo < noOfUsers; ++userNo) {
+            User user = new User("bench-user-" + (firstAccountNo + userNo) + "@gmail.com");
+            Account account = new Account(firstAccountNo + userNo, 1000);
+            Bank.getInstance().addUserAccount(account);
+            user.setAccount(account);
+
+            byte[] personalInfo = user.getPersonalInfo(1000);
+            broker.registerNewUser(personalInfo);
+            user.setUserCertificate(broker.getUserCertificate(broker.getUserIdentityFromPersonalInfo(personalInfo)));
+
+            user.generateNewHashChains(vendorInfo);
+            Commit commit = user.computeCommitment(vendorInfo);
+            UserInfo userInfo = commit.getUserInfoFromCommit();
+            vendor.addNewCommit(userInfo, commit);
+            for (int paymentNo = 0; paymentNo < paymentsPerUser; ++paymentNo) {
+                Payment payment = user.constructPayment(vendorInfo, paymentNo, 1);
+                vendor.addNewPayment(userInfo, payment);
+                user.addPaymentToListOfPayments(vendorInfo, payment);
+            }
+        }
+
+        return vendor.getRedeemMessages();
+    }
+
+    private static void print(PrintStream results, String command, int ok, int total, long elapsed) {
+        results.println("RedeemBatchBenchmark: " + command + " ok=" + ok + "/" + total
+                + " time=" + String.format("%.1fms", elapsed / 1e6)
+                + " redeems/s=" + String.format("%.0f", total / (elapsed / 1e9)));
+    }
+
+}